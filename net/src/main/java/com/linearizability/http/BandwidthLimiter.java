@@ -0,0 +1,335 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 带宽整形
+ * <p>
+ * 三级令牌桶：全局、每个客户端 IP、每个传输，一次传输的每个数据片段须同时从三个桶取得令牌。
+ * 令牌以预约方式扣减（余额可为负，调用方按欠额休眠），桶内使用公平锁，
+ * 因此活跃传输按到达顺序逐个 {@link #QUANTUM} 轮流取得令牌，大文件不会饿死小文件。
+ * <p>
+ * 速率单位为字节/秒，0 表示不限速；可在运行期通过 {@link #setLimits} 调整。进行中的传输最迟在
+ * {@link #BURST_MILLIS} 内感知新速率：已按旧速率预约的等待按新速率重算，之后的分片直接按新速率取令牌。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+class BandwidthLimiter {
+
+    static final int QUANTUM = 64 * 1024; // 单次取令牌的最大字节数，即公平调度的粒度
+    private static final long BURST_MILLIS = 250; // 桶容量：250ms 的流量，且不小于一个 QUANTUM
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(BURST_MILLIS); // 单次休眠上限，醒来后重新检查速率
+    static final long KEEP = -1; // setLimits 中表示保持原值
+
+    private final TokenBucket global;
+    private volatile long perClientRate;
+    private volatile long perTransferRate;
+    private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<>();
+    private final Set<Transfer> transfers = ConcurrentHashMap.newKeySet();
+
+    BandwidthLimiter(long globalRate, long perClientRate, long perTransferRate) {
+        this.global = new TokenBucket(globalRate);
+        this.perClientRate = perClientRate;
+        this.perTransferRate = perTransferRate;
+    }
+
+    /**
+     * 调整限速，参数为 {@link #KEEP} 的级别保持不变。
+     */
+    void setLimits(long globalRate, long perClientRate, long perTransferRate) {
+        if (globalRate != KEEP) global.setRate(globalRate);
+        if (perClientRate != KEEP) {
+            this.perClientRate = perClientRate;
+            clients.values().forEach(c -> c.bucket.setRate(perClientRate));
+        }
+        if (perTransferRate != KEEP) {
+            this.perTransferRate = perTransferRate;
+            transfers.forEach(t -> t.bucket.setRate(perTransferRate));
+        }
+        log.info("Bandwidth limits: global={} B/s, perClient={} B/s, perTransfer={} B/s",
+                global.rate, this.perClientRate, this.perTransferRate);
+    }
+
+    long globalRate() {
+        return global.rate;
+    }
+
+    long perClientRate() {
+        return perClientRate;
+    }
+
+    long perTransferRate() {
+        return perTransferRate;
+    }
+
+    int activeTransfers() {
+        return transfers.size();
+    }
+
+    int activeClients() {
+        return clients.size();
+    }
+
+    /**
+     * 开始一次传输，结束时须调用 {@link Transfer#close()}。
+     *
+     * @param clientId 客户端标识（通常为 IP）
+     */
+    Transfer open(String clientId) {
+        Client client = clients.compute(clientId, (k, c) -> {
+            if (c == null) c = new Client(new TokenBucket(perClientRate));
+            c.transfers++;
+            return c;
+        });
+        Transfer transfer = new Transfer(clientId, client, new TokenBucket(perTransferRate));
+        transfers.add(transfer);
+        return transfer;
+    }
+
+    private void release(Transfer transfer) {
+        if (!transfers.remove(transfer)) return;
+        // 客户端没有活跃传输后移除其令牌桶，避免按 IP 无限增长
+        clients.computeIfPresent(transfer.clientId, (k, c) -> --c.transfers == 0 ? null : c);
+    }
+
+    private static final class Client {
+        final TokenBucket bucket;
+        int transfers; // 仅在 ConcurrentHashMap.compute 内修改
+
+        Client(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * 单次传输的限速句柄
+     */
+    final class Transfer implements Closeable {
+        private final String clientId;
+        private final Client client;
+        private final TokenBucket bucket;
+
+        private Transfer(String clientId, Client client, TokenBucket bucket) {
+            this.clientId = clientId;
+            this.client = client;
+            this.bucket = bucket;
+        }
+
+        /**
+         * 为 bytes 字节（不超过 {@link #QUANTUM}）取得令牌，必要时阻塞。
+         * 每次最多休眠 {@link #BURST_MILLIS}，醒来后若某级速率已被调整，则按新速率重算该级剩余的等待时间。
+         */
+        void acquire(long bytes) throws InterruptedIOException {
+            TokenBucket[] buckets = {global, client.bucket, bucket};
+            long[] rates = null;
+            long[] deadlines = null;
+            long now = System.nanoTime();
+            for (int i = 0; i < buckets.length; i++) {
+                long wait = buckets[i].reserve(bytes);
+                if (wait <= 0) continue;
+                if (deadlines == null) {
+                    rates = new long[buckets.length];
+                    deadlines = new long[buckets.length];
+                }
+                rates[i] = buckets[i].rate;
+                deadlines[i] = now + wait;
+            }
+            if (deadlines == null) return;
+
+            while (true) {
+                now = System.nanoTime();
+                long remaining = 0;
+                for (long deadline : deadlines) remaining = Math.max(remaining, deadline - now);
+                if (remaining <= 0) return;
+                LockSupport.parkNanos(Math.min(remaining, MAX_PARK_NANOS));
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+                now = System.nanoTime();
+                for (int i = 0; i < buckets.length; i++) {
+                    long rate = buckets[i].rate;
+                    if (rate == rates[i]) continue;
+                    // 欠额按旧速率折算为字节，再按新速率换算等待时间；新速率为 0（不限速）时立即放行
+                    long left = deadlines[i] - now;
+                    if (left > 0) deadlines[i] = rate <= 0 ? now : now + (long) (left * (double) rates[i] / rate);
+                    rates[i] = rate;
+                }
+            }
+        }
+
+        /**
+         * 当前是否有任一级别限速（无限速时调用方可走不分片的快速路径）。
+         */
+        boolean limited() {
+            return global.rate > 0 || client.bucket.rate > 0 || bucket.rate > 0;
+        }
+
+        InputStream wrap(InputStream in) {
+            return new ThrottledInputStream(in, this);
+        }
+
+        /**
+         * 被包装的流支持零拷贝时返回同样支持零拷贝的包装；否则返回普通输出流，
+         * 由调用方走基于（池化）缓冲区的拷贝路径，包装层不再自行分配缓冲区。
+         */
+        OutputStream wrap(OutputStream out) {
+            return out instanceof FileRegionSink ? new ThrottledRegionOutputStream(out, this) : new ThrottledOutputStream(out, this);
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /**
+     * 令牌桶：按速率补充令牌，容量为 {@link #BURST_MILLIS} 的流量。
+     */
+    private static final class TokenBucket {
+        private final ReentrantLock lock = new ReentrantLock(true); // 公平锁：等待者按 FIFO 取得令牌
+        private volatile long rate;
+        private long available;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = Math.max(0, rate);
+            this.available = capacity(this.rate);
+        }
+
+        void setRate(long rate) {
+            lock.lock();
+            try {
+                refill();
+                this.rate = Math.max(0, rate);
+                available = Math.min(available, capacity(this.rate));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 预约 bytes 个令牌，返回调用方需等待的纳秒数（0 表示可立即发送）。
+         */
+        long reserve(long bytes) {
+            if (rate <= 0) return 0;
+            lock.lock();
+            try {
+                long r = rate;
+                if (r <= 0) return 0;
+                refill();
+                available -= bytes;
+                return available >= 0 ? 0 : (long) (-available * (double) TimeUnit.SECONDS.toNanos(1) / r);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            long elapsed = now - lastRefill;
+            lastRefill = now;
+            if (rate <= 0) {
+                available = 0;
+                return;
+            }
+            long added = (long) (elapsed * (double) rate / TimeUnit.SECONDS.toNanos(1));
+            available = Math.min(capacity(rate), available + added);
+        }
+
+        private static long capacity(long rate) {
+            return Math.max(QUANTUM, rate * BURST_MILLIS / 1000);
+        }
+    }
+
+    /**
+     * 按 {@link #QUANTUM} 分片取令牌的输入流（用于上传）。
+     */
+    private static final class ThrottledInputStream extends FilterInputStream {
+        private final Transfer transfer;
+
+        ThrottledInputStream(InputStream in, Transfer transfer) {
+            super(in);
+            this.transfer = transfer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) transfer.acquire(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, transfer.limited() ? Math.min(len, QUANTUM) : len);
+            if (n > 0) transfer.acquire(n);
+            return n;
+        }
+    }
+
+    /**
+     * 按 {@link #QUANTUM} 分片取令牌的输出流（用于下载）。
+     */
+    private static class ThrottledOutputStream extends FilterOutputStream {
+        final Transfer transfer;
+
+        ThrottledOutputStream(OutputStream out, Transfer transfer) {
+            super(out);
+            this.transfer = transfer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            transfer.acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = transfer.limited() ? Math.min(len, QUANTUM) : len;
+                transfer.acquire(n);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+    }
+
+    /**
+     * 被包装的流支持零拷贝时使用的输出流：文件区间按 {@link #QUANTUM} 分片取令牌后交给下层零拷贝写出。
+     */
+    private static final class ThrottledRegionOutputStream extends ThrottledOutputStream implements FileRegionSink {
+        private final FileRegionSink sink;
+
+        ThrottledRegionOutputStream(OutputStream out, Transfer transfer) {
+            super(out, transfer);
+            this.sink = (FileRegionSink) out;
+        }
+
+        @Override
+        public long transferFrom(FileChannel fc, long position, long count) throws IOException {
+            long n = transfer.limited() ? Math.min(count, QUANTUM) : count;
+            transfer.acquire(n);
+            return sink.transferFrom(fc, position, n);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.linearizability.http;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 传输缓冲区池
+ * <p>
+ * 上传解析、分块写入与非零拷贝下载都需要一个大缓冲区，每个请求各自分配会在高并发时产生大量短命大对象。
+ * 池中最多创建 capacity 个缓冲区，用完归还后复用；全部借出时临时分配一个不入池的缓冲区，不阻塞请求，
+ * 并计入耗尽次数，提示应调大池容量（或并发上限）。
+ * <p>
+ * 缓冲区是堆上的 byte[]：所有使用方都通过 InputStream / OutputStream 读写，JDK 内置 HTTP 引擎（默认）的响应流
+ * 只接受 byte[]，使用直接内存还需再拷贝到堆上；仅 NIO 引擎（-Dhttp.engine=nio）的响应流支持
+ * {@link FileRegionSink}，下载时直接 sendfile，不借用缓冲区。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final ArrayBlockingQueue<byte[]> idle;
+    private final AtomicInteger created = new AtomicInteger();
+    private final TransferMetrics metrics;
+
+    /**
+     * @param bufferSize 每个缓冲区的大小
+     * @param capacity   池中最多创建的缓冲区数
+     * @param metrics    借出与耗尽计数
+     */
+    BufferPool(int bufferSize, int capacity, TransferMetrics metrics) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.metrics = metrics;
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 借出一个缓冲区，用完须关闭租约归还；缓冲区内容不会被清零。
+     */
+    Lease lease() {
+        metrics.bufferLeases.increment();
+        metrics.buffersLeased.increment();
+        byte[] buffer = idle.poll();
+        if (buffer != null) return new Lease(buffer, true);
+        if (created.incrementAndGet() <= capacity) return new Lease(new byte[bufferSize], true);
+        created.decrementAndGet();
+        metrics.bufferPoolExhausted.increment();
+        return new Lease(new byte[bufferSize], false);
+    }
+
+    /**
+     * 缓冲区租约
+     */
+    final class Lease implements Closeable {
+        private byte[] buffer;
+        private final boolean pooled;
+
+        private Lease(byte[] buffer, boolean pooled) {
+            this.buffer = buffer;
+            this.pooled = pooled;
+        }
+
+        byte[] buffer() {
+            if (buffer == null) throw new IllegalStateException("buffer already returned");
+            return buffer;
+        }
+
+        /**
+         * 归还缓冲区，重复调用无效果。
+         */
+        @Override
+        public void close() {
+            if (buffer == null) return;
+            if (pooled) idle.offer(buffer);
+            buffer = null;
+            metrics.buffersLeased.decrement();
+        }
+    }
+}
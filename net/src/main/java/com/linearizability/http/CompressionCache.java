@@ -0,0 +1,237 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 预压缩变体缓存
+ * <p>
+ * 可压缩文件（文本、CSV、JSON、日志等）第一次被支持 gzip 的客户端请求时，在后台线程中压缩为
+ * {key}.gz 旁路文件，之后的请求直接以零拷贝发送压缩变体，不再占用请求线程的 CPU：
+ * - key 由内容摘要（或文件名 + 大小 + 修改时间）决定，源文件变化后自然失效；
+ * - 压缩率不足 10% 的文件记为不可压缩，不再重复尝试；
+ * - 缓存总大小受限，超出时按最近最少使用顺序淘汰。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+class CompressionCache implements Closeable {
+
+    static final String ENCODING_GZIP = "gzip";
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final double MIN_SAVING = 0.10; // 至少节省 10% 才保留压缩变体
+    private static final int COMPRESS_THREADS = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Set<String> TEXT_EXTENSIONS = Set.of(
+            "txt", "log", "csv", "tsv", "json", "ndjson", "xml", "html", "htm", "css", "js", "md", "yaml", "yml", "sql", "svg");
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long minFileBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true); // LRU：key -> 压缩后大小
+    private long totalBytes;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final Set<String> incompressible = ConcurrentHashMap.newKeySet();
+    private final ExecutorService compressor;
+
+    /**
+     * @param dir          缓存目录
+     * @param maxBytes     缓存总大小上限
+     * @param minFileBytes 小于此大小的文件不压缩
+     */
+    CompressionCache(Path dir, long maxBytes, long minFileBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.minFileBytes = minFileBytes;
+        Files.createDirectories(dir);
+        try (Stream<Path> s = Files.list(dir)) {
+            // 按修改时间恢复 LRU 顺序，中断遗留的临时文件直接删除
+            for (Path p : s.sorted(Comparator.comparing(CompressionCache::lastModified)).toList()) {
+                String file = p.getFileName().toString();
+                if (file.endsWith(GZIP_SUFFIX)) {
+                    long size = Files.size(p);
+                    entries.put(file.substring(0, file.length() - GZIP_SUFFIX.length()), size);
+                    totalBytes += size;
+                } else {
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+        evict();
+        this.compressor = Executors.newFixedThreadPool(COMPRESS_THREADS, Thread.ofPlatform().name("compress-", 0).daemon(true).factory());
+    }
+
+    /**
+     * 缓存 key：有内容摘要时使用摘要（同内容不同名共享变体），否则由文件名、大小与修改时间派生。
+     */
+    static String key(String name, long size, long lastModified, String sha256) {
+        if (sha256 != null) return sha256;
+        byte[] id = (name + '\0' + size + '\0' + lastModified).getBytes(StandardCharsets.UTF_8);
+        return HexFormat.of().formatHex(ContentStore.newDigest().digest(id));
+    }
+
+    /**
+     * 客户端是否接受 gzip：显式列出的 gzip / x-gzip 优先（q 值大于 0 才接受），
+     * 未列出时才看 * 的 q 值，因此 "gzip;q=0, *" 不会返回压缩变体。
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        double explicit = -1;
+        double wildcard = -1;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            if (coding.equals(ENCODING_GZIP) || coding.equals("x-gzip")) {
+                explicit = Math.max(explicit, qValue(parts));
+            } else if (coding.equals("*")) {
+                wildcard = Math.max(wildcard, qValue(parts));
+            }
+        }
+        return explicit >= 0 ? explicit > 0 : wildcard > 0;
+    }
+
+    private static double qValue(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String p = parts[i].trim();
+            if (p.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(p.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * 按大小、扩展名与 Content-Type 判断文件是否值得压缩。
+     */
+    boolean isCompressible(String name, String contentType, long size) {
+        if (size < minFileBytes || size > maxBytes) return false;
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && TEXT_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) return true;
+        String type = contentType == null ? "" : contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.contains("json") || type.contains("xml")
+                || type.contains("javascript") || type.contains("csv") || type.contains("yaml");
+    }
+
+    /**
+     * 查找已缓存的压缩变体。
+     *
+     * @return 变体路径，未缓存时返回 null
+     */
+    Path lookup(String key) {
+        synchronized (entries) {
+            if (entries.get(key) == null) return null; // get 同时刷新 LRU 顺序
+        }
+        return dir.resolve(key + GZIP_SUFFIX);
+    }
+
+    /**
+     * 请求在后台生成压缩变体；已在生成中、已缓存或已知不可压缩时忽略。
+     */
+    void request(String key, Path source) {
+        if (incompressible.contains(key) || !inFlight.add(key)) return;
+        synchronized (entries) {
+            if (entries.containsKey(key)) {
+                inFlight.remove(key);
+                return;
+            }
+        }
+        try {
+            compressor.execute(() -> {
+                try {
+                    compress(key, source);
+                } catch (Exception e) {
+                    log.warn("Compression failed for {}: {}", source, e.getMessage());
+                } finally {
+                    inFlight.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key);
+        }
+    }
+
+    private void compress(String key, Path source) throws IOException {
+        long start = System.currentTimeMillis();
+        long sourceSize = Files.size(source);
+        long sourceModified = Files.getLastModifiedTime(source).toMillis();
+        Path tmp = dir.resolve(key + GZIP_SUFFIX + TMP_SUFFIX);
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE)) {
+            in.transferTo(out);
+        }
+        long size = Files.size(tmp);
+        // 压缩期间源文件被改写，或压缩收益不足时丢弃
+        boolean changed = Files.size(source) != sourceSize || Files.getLastModifiedTime(source).toMillis() != sourceModified;
+        if (changed || size > sourceSize * (1 - MIN_SAVING)) {
+            Files.deleteIfExists(tmp);
+            if (!changed) incompressible.add(key);
+            return;
+        }
+        Files.move(tmp, dir.resolve(key + GZIP_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (entries) {
+            Long old = entries.put(key, size);
+            totalBytes += size - (old == null ? 0 : old);
+        }
+        evict();
+        log.info("Compressed {}: {} -> {} bytes in {} ms", source.getFileName(), sourceSize, size, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 按 LRU 顺序淘汰，直到总大小不超过上限。
+     */
+    private void evict() {
+        synchronized (entries) {
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Long> e = it.next();
+                it.remove();
+                totalBytes -= e.getValue();
+                try {
+                    Files.deleteIfExists(dir.resolve(e.getKey() + GZIP_SUFFIX));
+                } catch (IOException ex) {
+                    log.warn("Failed to evict compressed variant {}: {}", e.getKey(), ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private static long lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        compressor.shutdownNow();
+    }
+}
@@ -0,0 +1,349 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * 内容寻址的去重存储
+ * <p>
+ * 上传内容在写入临时文件的同时计算 SHA-256，完成后按摘要存入 objects/{前两位}/{摘要}，同一内容只保存一份；
+ * 存储目录下的同名文件是指向对象的硬链接，因此列表、下载、Range 等逻辑无需感知去重。
+ * <p>
+ * 名称到摘要的映射以追加日志 names.log 保存（每次变化追加一行，启动时回放并按需压缩），
+ * 上传路径的开销与已存文件数无关；某个对象不再被任何名称引用（链接数降为 1）时删除。
+ * 文件系统不支持硬链接时退化为复制，仍可按摘要查询但不再节省空间。
+ * <p>
+ * 落盘策略不为 NONE 时，入库与暴露名称的改名（对象目录、名称所在目录）以及名称日志在返回前经 {@link FileSync} 持久化，
+ * 已确认的上传在崩溃后不会丢失名称或指向不存在的对象。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+class ContentStore {
+
+    static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int DIGEST_HEX_LENGTH = 64;
+    private static final String OBJECTS_DIR = "objects";
+    private static final String TMP_DIR = "tmp";
+    private static final String NAMES_LOG = "names.log";
+    private static final String LEGACY_NAMES_FILE = "names.properties";
+    private static final int COMPACT_SLACK = 1024; // 日志记录数超过 2 倍有效名称 + 此值时启动压缩
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    private final StorageLayout layout;
+    private final FileSync fileSync;
+    private final Path objectsDir;
+    private final Path tmpDir;
+    private final Path namesLog;
+    private final Path legacyNamesFile;
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>(); // 文件名 -> 摘要
+    private final HashMap<String, Integer> refs = new HashMap<>(); // 摘要 -> 引用它的名称数，持有本对象的锁时访问
+    private FileChannel namesChannel;
+    private volatile boolean hardLinks = true;
+
+    /**
+     * @param layout  对外可见的存储目录布局
+     * @param metaDir  内部元数据目录（对象与索引存放于此）
+     * @param fileSync 落盘策略
+     */
+    ContentStore(StorageLayout layout, Path metaDir, FileSync fileSync) throws IOException {
+        this.layout = layout;
+        this.fileSync = fileSync;
+        this.objectsDir = metaDir.resolve(OBJECTS_DIR);
+        this.tmpDir = metaDir.resolve(TMP_DIR);
+        this.namesLog = metaDir.resolve(NAMES_LOG);
+        this.legacyNamesFile = metaDir.resolve(LEGACY_NAMES_FILE);
+        Files.createDirectories(objectsDir);
+        Files.createDirectories(tmpDir);
+        try (Stream<Path> s = Files.list(tmpDir)) {
+            for (Path p : s.toList()) Files.deleteIfExists(p); // 上次中断遗留的临时文件
+        }
+        loadNames();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 规范化摘要（小写十六进制），格式不合法时返回 null。
+     */
+    static String normalizeDigest(String digest) {
+        if (digest == null || digest.length() != DIGEST_HEX_LENGTH) return null;
+        String d = digest.toLowerCase();
+        for (int i = 0; i < d.length(); i++) {
+            if (Character.digit(d.charAt(i), 16) < 0) return null;
+        }
+        return d;
+    }
+
+    /**
+     * 顺序读取整个文件计算摘要（用于未在写入时计算摘要的数据，如分块上传会话）。
+     */
+    static String digestOf(Path file) throws IOException {
+        MessageDigest md = newDigest();
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) md.update(buffer, 0, n);
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    /**
+     * 分配一个临时文件路径，写入完成后交给 {@link #commit} 入库。
+     */
+    Path newTempFile() {
+        return tmpDir.resolve(UUID.randomUUID().toString());
+    }
+
+    Path objectPath(String digest) {
+        return objectsDir.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    boolean contains(String digest) {
+        return Files.isRegularFile(objectPath(digest));
+    }
+
+    /**
+     * 文件名当前对应的摘要，未通过本存储写入的文件返回 null。
+     */
+    String digestOfName(String name) {
+        return names.get(name);
+    }
+
+    /**
+     * 将已写完的临时文件按摘要入库，并以 name 暴露到存储目录；内容已存在时直接丢弃临时文件。
+     *
+     * @return true 表示内容已存在（去重命中）
+     */
+    boolean commit(Path temp, String digest, String name) throws IOException {
+        Path object = objectPath(digest);
+        boolean existed;
+        List<Path> dirs = new ArrayList<>(3);
+        synchronized (this) {
+            existed = Files.exists(object);
+            if (existed) {
+                Files.delete(temp);
+            } else {
+                if (!Files.isDirectory(object.getParent())) {
+                    Files.createDirectories(object.getParent());
+                    dirs.add(objectsDir);
+                }
+                Files.move(temp, object, StandardCopyOption.ATOMIC_MOVE);
+                dirs.add(object.getParent());
+            }
+            refs.merge(digest, 1, Integer::sum); // 先占住引用，避免暴露名称前对象被并发释放
+        }
+        dirs.add(expose(name, digest).getParent());
+        sync(dirs);
+        if (existed) log.info("Deduplicated: {} -> {}", name, digest);
+        return existed;
+    }
+
+    /**
+     * 让 name 指向已存在的对象（替换同名文件），原对象不再被引用时删除。
+     *
+     * @throws NoSuchFileException 对象不存在时抛出
+     */
+    void link(String name, String digest) throws IOException {
+        synchronized (this) {
+            if (!Files.exists(objectPath(digest))) throw new NoSuchFileException(digest);
+            refs.merge(digest, 1, Integer::sum);
+        }
+        sync(List.of(expose(name, digest).getParent()));
+    }
+
+    /**
+     * 删除名称（如配额淘汰），对象不再被引用时一并删除。名称日志无需追加记录：回放时文件已不存在的名称会被丢弃。
+     *
+     * @return 名称对应的文件是否存在
+     */
+    boolean remove(String name) throws IOException {
+        synchronized (this) {
+            boolean existed = Files.deleteIfExists(layout.resolve(name));
+            String digest = names.remove(name);
+            if (digest != null) unref(digest);
+            return existed;
+        }
+    }
+
+    /**
+     * 按落盘策略持久化名称日志与给定目录中的改名。
+     */
+    private void sync(Collection<Path> dirs) throws IOException {
+        if (fileSync.policy() == FileSync.Policy.NONE) return;
+        namesChannel.force(false);
+        fileSync.syncDirectories(dirs);
+    }
+
+    /**
+     * 在锁外准备好链接（或复制回退），再在锁内原子替换名称并追加映射记录；调用前须已为 digest 占住一个引用。
+     *
+     * @return 名称在存储目录中的路径
+     */
+    private Path expose(String name, String digest) throws IOException {
+        Path object = objectPath(digest);
+        Path staged = newTempFile();
+        Path target;
+        String old;
+        try {
+            stage(object, staged);
+            synchronized (this) {
+                target = layout.prepare(name);
+                Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                old = names.put(name, digest);
+                appendName(name, digest);
+                if (old != null) unref(old);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(staged);
+            synchronized (this) {
+                unref(digest);
+            }
+            throw e;
+        }
+        return target;
+    }
+
+    private void stage(Path object, Path staged) throws IOException {
+        if (hardLinks) {
+            try {
+                Files.createLink(staged, object);
+                return;
+            } catch (UnsupportedOperationException e) {
+                disableHardLinks(e);
+            } catch (IOException e) {
+                if (linksUnsupported(e)) {
+                    disableHardLinks(e);
+                } else {
+                    // 偶发错误只对本次回退为复制，之后仍尝试硬链接
+                    log.warn("Hard link failed for {} ({}), copying this object instead", object.getFileName(), e.toString());
+                }
+            }
+        }
+        Files.copy(object, staged);
+    }
+
+    private void disableHardLinks(Exception e) {
+        hardLinks = false;
+        log.warn("Hard links unavailable under {} ({}), falling back to copies", layout.root(), e.toString());
+    }
+
+    /**
+     * 文件系统本身不支持硬链接（而非偶发 IO 错误）：EPERM / ENOTSUP / EXDEV。
+     */
+    private static boolean linksUnsupported(IOException e) {
+        if (!(e instanceof FileSystemException fse) || fse.getReason() == null) return false;
+        String reason = fse.getReason().toLowerCase(Locale.ROOT);
+        return reason.contains("not supported") || reason.contains("not permitted") || reason.contains("cross-device");
+    }
+
+    /**
+     * 释放一个引用；对象不再被任何名称引用，且只剩自身一个链接时删除。调用方须持有本对象的锁。
+     */
+    private void unref(String digest) {
+        Integer left = refs.computeIfPresent(digest, (d, n) -> n > 1 ? n - 1 : null);
+        if (left != null) return;
+        Path object = objectPath(digest);
+        try {
+            Object nlink = Files.getAttribute(object, "unix:nlink");
+            if (nlink instanceof Integer n && n <= 1) {
+                Files.deleteIfExists(object);
+                log.info("Object released: {}", digest);
+            }
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException ignored) {
+            // 无法确认引用数时保留对象
+        }
+    }
+
+    /**
+     * 回放名称日志；不存在的名称丢弃，日志中的过期记录明显多于有效记录时压缩重写。
+     * 旧版本的 names.properties 在此迁移为日志。
+     */
+    private void loadNames() throws IOException {
+        int records = 0;
+        if (Files.exists(namesLog)) {
+            try (BufferedReader reader = Files.newBufferedReader(namesLog, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int sep = line.lastIndexOf(' ');
+                    if (sep <= 0) continue; // 中断写入留下的残行
+                    String digest = normalizeDigest(line.substring(sep + 1));
+                    if (digest == null) continue;
+                    names.put(URLDecoder.decode(line.substring(0, sep), StandardCharsets.UTF_8), digest);
+                    records++;
+                }
+            }
+        }
+        if (Files.exists(legacyNamesFile)) {
+            Properties p = new Properties();
+            try (InputStream in = Files.newInputStream(legacyNamesFile)) {
+                p.load(in);
+            }
+            for (String name : p.stringPropertyNames()) names.putIfAbsent(name, p.getProperty(name));
+            records = Integer.MAX_VALUE; // 强制重写为日志格式
+        }
+        // 已被删除或替换为普通文件的名称不再保留
+        names.keySet().removeIf(name -> !Files.isRegularFile(layout.resolve(name)));
+        names.values().forEach(digest -> refs.merge(digest, 1, Integer::sum));
+        if (records > names.size() * 2L + COMPACT_SLACK) compactNames();
+        Files.deleteIfExists(legacyNamesFile);
+        namesChannel = FileChannel.open(namesLog, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void compactNames() throws IOException {
+        Path tmp = newTempFile();
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> e : names.entrySet()) {
+                writer.write(nameRecord(e.getKey(), e.getValue()));
+            }
+        }
+        Files.move(tmp, namesLog, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 追加一条 "名称 摘要" 记录（名称经 URL 编码，不含空格与换行），后出现的记录覆盖先前的。调用方须持有本对象的锁。
+     */
+    private void appendName(String name, String digest) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(nameRecord(name, digest).getBytes(StandardCharsets.UTF_8));
+        while (record.hasRemaining()) namesChannel.write(record);
+    }
+
+    private static String nameRecord(String name, String digest) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8) + ' ' + digest + '\n';
+    }
+}
@@ -0,0 +1,175 @@
+package com.linearizability.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Content-Type 检测
+ * <p>
+ * 依次按扩展名表、文件头魔数、文本启发式判断，只在都无法识别时才退回 {@link Files#probeContentType}
+ * （其实现依赖平台，可能需要读取系统 MIME 数据库或启动外部进程）。
+ * 扩展名命中时不访问文件；魔数与文本检测只读取文件开头的 {@link #SNIFF_BYTES} 字节。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+final class ContentTypeDetector {
+
+    private static final String OCTET_STREAM = "application/octet-stream";
+    private static final int SNIFF_BYTES = 512;
+
+    private static final Map<String, String> BY_EXTENSION = Map.ofEntries(
+            Map.entry("txt", "text/plain"), Map.entry("log", "text/plain"), Map.entry("md", "text/markdown"),
+            Map.entry("csv", "text/csv"), Map.entry("tsv", "text/tab-separated-values"),
+            Map.entry("html", "text/html"), Map.entry("htm", "text/html"), Map.entry("css", "text/css"),
+            Map.entry("js", "text/javascript"), Map.entry("mjs", "text/javascript"), Map.entry("json", "application/json"),
+            Map.entry("xml", "application/xml"), Map.entry("yaml", "application/yaml"), Map.entry("yml", "application/yaml"),
+            Map.entry("svg", "image/svg+xml"), Map.entry("pdf", "application/pdf"), Map.entry("rtf", "application/rtf"),
+            Map.entry("png", "image/png"), Map.entry("jpg", "image/jpeg"), Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"), Map.entry("webp", "image/webp"), Map.entry("bmp", "image/bmp"),
+            Map.entry("ico", "image/vnd.microsoft.icon"), Map.entry("tif", "image/tiff"), Map.entry("tiff", "image/tiff"),
+            Map.entry("heic", "image/heic"), Map.entry("avif", "image/avif"),
+            Map.entry("mp3", "audio/mpeg"), Map.entry("wav", "audio/wav"), Map.entry("ogg", "audio/ogg"),
+            Map.entry("opus", "audio/opus"), Map.entry("flac", "audio/flac"), Map.entry("m4a", "audio/mp4"), Map.entry("aac", "audio/aac"),
+            Map.entry("mp4", "video/mp4"), Map.entry("m4v", "video/mp4"), Map.entry("mov", "video/quicktime"),
+            Map.entry("mkv", "video/x-matroska"), Map.entry("webm", "video/webm"), Map.entry("avi", "video/x-msvideo"),
+            Map.entry("zip", "application/zip"), Map.entry("gz", "application/gzip"), Map.entry("tgz", "application/gzip"),
+            Map.entry("bz2", "application/x-bzip2"), Map.entry("xz", "application/x-xz"), Map.entry("zst", "application/zstd"),
+            Map.entry("7z", "application/x-7z-compressed"), Map.entry("rar", "application/vnd.rar"), Map.entry("tar", "application/x-tar"),
+            Map.entry("jar", "application/java-archive"), Map.entry("war", "application/java-archive"),
+            Map.entry("apk", "application/vnd.android.package-archive"), Map.entry("exe", "application/vnd.microsoft.portable-executable"),
+            Map.entry("msi", "application/x-msi"), Map.entry("dmg", "application/x-apple-diskimage"), Map.entry("iso", "application/x-iso9660-image"),
+            Map.entry("deb", "application/vnd.debian.binary-package"), Map.entry("rpm", "application/x-rpm"),
+            Map.entry("doc", "application/msword"), Map.entry("xls", "application/vnd.ms-excel"), Map.entry("ppt", "application/vnd.ms-powerpoint"),
+            Map.entry("docx", "application/vnd.openxmlformats-officedocument.wordprocessingml.document"),
+            Map.entry("xlsx", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"),
+            Map.entry("pptx", "application/vnd.openxmlformats-officedocument.presentationml.presentation"),
+            Map.entry("odt", "application/vnd.oasis.opendocument.text"), Map.entry("epub", "application/epub+zip"),
+            Map.entry("woff", "font/woff"), Map.entry("woff2", "font/woff2"), Map.entry("ttf", "font/ttf"), Map.entry("otf", "font/otf"),
+            Map.entry("wasm", "application/wasm"), Map.entry("sql", "application/sql"), Map.entry("sh", "application/x-sh"),
+            Map.entry("java", "text/x-java"), Map.entry("py", "text/x-python"), Map.entry("c", "text/x-c"), Map.entry("h", "text/x-c"),
+            Map.entry("properties", "text/plain"), Map.entry("ini", "text/plain"), Map.entry("conf", "text/plain"), Map.entry("toml", "application/toml"));
+
+    /**
+     * 文件头魔数
+     *
+     * @param offset 魔数在文件中的偏移
+     * @param bytes  魔数
+     * @param type   对应的 Content-Type
+     */
+    private record Magic(int offset, byte[] bytes, String type) {
+        Magic(int offset, String hexBytes, String type) {
+            this(offset, HexFormat.of().parseHex(hexBytes), type);
+        }
+
+        boolean matches(byte[] head, int length) {
+            if (offset + bytes.length > length) return false;
+            for (int i = 0; i < bytes.length; i++) {
+                if (head[offset + i] != bytes[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    // 更具体的格式放在前面（如 WebP / WAV 同为 RIFF 容器，需同时检查偏移 8 处的格式标识）
+    private static final Magic[] MAGICS = {
+            new Magic(0, "89504e470d0a1a0a", "image/png"),
+            new Magic(0, "ffd8ff", "image/jpeg"),
+            new Magic(0, "474946383761", "image/gif"),
+            new Magic(0, "474946383961", "image/gif"),
+            new Magic(8, "57454250", "image/webp"),
+            new Magic(8, "57415645", "audio/wav"),
+            new Magic(8, "41564920", "video/x-msvideo"),
+            new Magic(0, "25504446", "application/pdf"),
+            new Magic(0, "504b0304", "application/zip"),
+            new Magic(0, "504b0506", "application/zip"),
+            new Magic(0, "1f8b", "application/gzip"),
+            new Magic(0, "425a68", "application/x-bzip2"),
+            new Magic(0, "fd377a585a00", "application/x-xz"),
+            new Magic(0, "28b52ffd", "application/zstd"),
+            new Magic(0, "377abcaf271c", "application/x-7z-compressed"),
+            new Magic(0, "526172211a07", "application/vnd.rar"),
+            new Magic(257, "7573746172", "application/x-tar"),
+            new Magic(4, "66747970", "video/mp4"),
+            new Magic(0, "1a45dfa3", "video/x-matroska"),
+            new Magic(0, "4f676753", "audio/ogg"),
+            new Magic(0, "664c6143", "audio/flac"),
+            new Magic(0, "494433", "audio/mpeg"),
+            new Magic(0, "7f454c46", "application/x-executable"),
+            new Magic(0, "4d5a", "application/vnd.microsoft.portable-executable"),
+            new Magic(0, "cafebabe", "application/java-vm"),
+            new Magic(0, "0061736d", "application/wasm"),
+            new Magic(0, "53514c69746520666f726d6174203300", "application/vnd.sqlite3"),
+    };
+
+    private ContentTypeDetector() {
+    }
+
+    /**
+     * 检测文件的 Content-Type。
+     *
+     * @param file 文件路径
+     * @param name 对外的文件名（用于扩展名判断）
+     * @return Content-Type，无法识别时为 {@link #OCTET_STREAM}
+     */
+    static String detect(Path file, String name) throws IOException {
+        String byExtension = byExtension(name);
+        if (byExtension != null) return byExtension;
+
+        byte[] head = new byte[SNIFF_BYTES];
+        int length;
+        try (InputStream in = Files.newInputStream(file)) {
+            length = in.readNBytes(head, 0, head.length);
+        }
+        for (Magic magic : MAGICS) {
+            if (magic.matches(head, length)) return magic.type();
+        }
+        if (length > 0 && isText(head, length, length == head.length)) return "text/plain";
+
+        String probed = Files.probeContentType(file);
+        return probed != null ? probed : OCTET_STREAM;
+    }
+
+    /**
+     * 按扩展名查表，未知扩展名返回 null。
+     */
+    static String byExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot == name.length() - 1) return null;
+        return BY_EXTENSION.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * 不含 NUL 与除空白外的控制字符，且是合法 UTF-8 时视为文本。
+     *
+     * @param truncated 只读取了文件开头，末尾可能截断一个多字节字符
+     */
+    private static boolean isText(byte[] head, int length, boolean truncated) {
+        for (int i = 0; i < length; i++) {
+            int b = head[i] & 0xff;
+            if (b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f' && b != 0x1b) return false;
+        }
+        int end = length;
+        if (truncated) {
+            // 去掉末尾可能不完整的字符：至多 3 个续字节及其首字节
+            for (int i = 0; i < 3 && end > 0 && (head[end - 1] & 0xc0) == 0x80; i++) end--;
+            if (end > 0 && (head[end - 1] & 0xc0) == 0xc0) end--;
+        }
+        try {
+            StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(head, 0, end));
+            return true;
+        } catch (CharacterCodingException e) {
+            return false;
+        }
+    }
+}
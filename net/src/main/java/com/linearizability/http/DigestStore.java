@@ -0,0 +1,87 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 文件内容摘要（SHA-256）的持久化记录
+ * <p>
+ * 摘要在上传写入的同一遍中计算，随后以 digests/{文件名} 旁路文件保存，内容为 "摘要 大小 修改时间"。
+ * 读取时校验大小与修改时间，文件在服务之外被改动后记录自动失效，不会返回过期摘要。
+ * 已读取的记录缓存在内存中。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+class DigestStore {
+
+    /**
+     * 摘要记录
+     *
+     * @param sha256       十六进制 SHA-256
+     * @param size         记录时的文件大小
+     * @param lastModified 记录时的修改时间（毫秒）
+     */
+    record Digest(String sha256, long size, long lastModified) {
+
+        /**
+         * Base64 编码的摘要，用于 Digest / Repr-Digest 响应头
+         */
+        String base64() {
+            return Base64.getEncoder().encodeToString(HexFormat.of().parseHex(sha256));
+        }
+    }
+
+    private static final Digest MISSING = new Digest("", -1, -1);
+
+    private final Path dir;
+    private final ConcurrentHashMap<String, Digest> cache = new ConcurrentHashMap<>();
+
+    DigestStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * 记录文件的摘要，大小与修改时间取自当前文件属性。
+     */
+    void put(Path file, String sha256) throws IOException {
+        String name = file.getFileName().toString();
+        Digest digest = new Digest(sha256, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+        Path tmp = dir.resolve(name + ".tmp");
+        Files.writeString(tmp, digest.sha256() + " " + digest.size() + " " + digest.lastModified(), StandardCharsets.US_ASCII);
+        Files.move(tmp, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        cache.put(name, digest);
+    }
+
+    /**
+     * 查询文件摘要，记录不存在或与当前大小/修改时间不一致时返回 null。
+     */
+    Digest get(String name, long size, long lastModified) {
+        Digest digest = cache.computeIfAbsent(name, this::load);
+        if (digest == MISSING || digest.size() != size || digest.lastModified() != lastModified) return null;
+        return digest;
+    }
+
+    private Digest load(String name) {
+        try {
+            String[] parts = Files.readString(dir.resolve(name), StandardCharsets.US_ASCII).trim().split(" ");
+            if (parts.length == 3) return new Digest(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        } catch (NoSuchFileException e) {
+            return MISSING;
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Ignoring unreadable digest record for {}: {}", name, e.getMessage());
+        }
+        return MISSING;
+    }
+}
@@ -0,0 +1,23 @@
+package com.linearizability.http;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * 可将文件区间直接写入底层连接的响应流
+ * <p>
+ * 实现方通常借助 {@link FileChannel#transferTo} 把数据交给内核（sendfile），数据不经过 Java 堆。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+interface FileRegionSink {
+
+    /**
+     * 将文件 [position, position + count) 区间写出到连接。
+     *
+     * @return 实际写出的字节数，文件被截断时可能小于 count
+     * @throws IOException IO 失败时抛出
+     */
+    long transferFrom(FileChannel fc, long position, long count) throws IOException;
+}
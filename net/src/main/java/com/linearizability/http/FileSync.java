@@ -0,0 +1,248 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 上传文件的原子提交与落盘策略
+ * <p>
+ * 上传数据先写入暂存目录中的临时文件（Content-Length 已知时预分配磁盘块，见 {@link Preallocator}），
+ * 完整接收后截断到实际长度，再以原子改名替换目标文件：读者要么看到旧文件，要么看到完整的新文件，
+ * 中断的上传不会留下看似完整的残缺文件。
+ * <p>
+ * 落盘策略决定提交返回前数据是否已持久化：
+ * - {@link Policy#NONE}：不主动 fsync，由操作系统回写，吞吐量最高，掉电可能丢失最近的上传；
+ * - {@link Policy#CLOSE}：每个文件 fsync 后改名，再 fsync 所在目录，每次上传两次 fsync；
+ * - {@link Policy#GROUP}：组提交，并发完成的上传排队，由其中一个线程依次 fsync 整批文件、改名，
+ *   每个目录只 fsync 一次，其余线程等待本批完成，提交返回时与 CLOSE 同样已持久化。
+ * <p>
+ * 去重入库等在提交之后还有改名的场景，通过 {@link #syncDirectories} 按同一策略持久化这些目录项。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+final class FileSync {
+
+    /**
+     * 落盘策略
+     */
+    enum Policy {
+        NONE, CLOSE, GROUP;
+
+        static Policy of(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final String TEMP_SUFFIX = ".part";
+    private static final long PREALLOCATE_MIN_BYTES = 1024 * 1024; // 小文件预分配得不偿失
+
+    private final Path stagingDir;
+    private final Policy policy;
+    private final boolean preallocate;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchDone = lock.newCondition();
+    private List<Commit> pending = new ArrayList<>();
+    private boolean committing; // 是否已有线程在提交一批
+
+    /**
+     * @param stagingDir  暂存目录，须与存储目录位于同一文件系统；启动时清理上次遗留的临时文件
+     * @param policy      落盘策略
+     * @param preallocate 是否按预期大小预分配磁盘块
+     */
+    FileSync(Path stagingDir, Policy policy, boolean preallocate) throws IOException {
+        this.stagingDir = stagingDir;
+        this.policy = policy;
+        this.preallocate = preallocate;
+        Files.createDirectories(stagingDir);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(stagingDir, "*" + TEMP_SUFFIX)) {
+            for (Path p : ds) Files.deleteIfExists(p);
+        }
+    }
+
+    Policy policy() {
+        return policy;
+    }
+
+    /**
+     * 在暂存目录中创建临时文件。
+     *
+     * @param expectedBytes 预期大小（上限即可，提交时按实际长度截断），未知时传 -1
+     */
+    Staged create(long expectedBytes) throws IOException {
+        Path temp = stagingDir.resolve(UUID.randomUUID() + TEMP_SUFFIX);
+        if (preallocate && expectedBytes >= PREALLOCATE_MIN_BYTES) Preallocator.preallocate(temp, expectedBytes);
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        return new Staged(temp, channel);
+    }
+
+    /**
+     * 写入中的临时文件
+     */
+    final class Staged implements Closeable {
+        private final Path temp;
+        private final FileChannel channel;
+        private final OutputStream out;
+        private boolean committed;
+
+        private Staged(Path temp, FileChannel channel) {
+            this.temp = temp;
+            this.channel = channel;
+            this.out = Channels.newOutputStream(channel);
+        }
+
+        Path path() {
+            return temp;
+        }
+
+        OutputStream outputStream() {
+            return out;
+        }
+
+        /**
+         * 截断到已写入的长度，按策略落盘后原子替换 target。
+         *
+         * @param target 目标文件；为 null 时只落盘并关闭，临时文件交由调用方处理（如去重入库）
+         */
+        void commit(Path target) throws IOException {
+            long length = channel.position();
+            if (channel.size() > length) channel.truncate(length);
+            switch (policy) {
+                case NONE -> {
+                    channel.close();
+                    publish(target);
+                }
+                case CLOSE -> {
+                    channel.force(true);
+                    channel.close();
+                    publish(target);
+                    if (target != null) syncDirectory(target.getParent());
+                }
+                case GROUP -> groupCommit(new Commit(this, target, List.of()));
+            }
+        }
+
+        private void publish(Path target) throws IOException {
+            if (target != null) Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * 放弃未提交的文件：关闭并删除临时文件；已提交时无操作。
+         */
+        @Override
+        public void close() throws IOException {
+            if (committed) return;
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 按策略持久化目录中的改名（如去重入库的对象目录与名称所在目录）：NONE 时不操作，
+     * GROUP 时与并发的提交合为一批，每个目录只 fsync 一次。
+     */
+    void syncDirectories(Collection<Path> dirs) throws IOException {
+        switch (policy) {
+            case NONE -> {
+            }
+            case CLOSE -> dirs.forEach(FileSync::syncDirectory);
+            case GROUP -> groupCommit(new Commit(null, null, dirs));
+        }
+    }
+
+    private static final class Commit {
+        final Staged file; // 为 null 时只同步目录
+        final Path target;
+        final Collection<Path> dirs;
+        boolean done; // 仅在 lock 内读写
+        IOException error;
+
+        Commit(Staged file, Path target, Collection<Path> dirs) {
+            this.file = file;
+            this.target = target;
+            this.dirs = dirs;
+        }
+    }
+
+    /**
+     * 组提交：没有线程在提交时由当前线程取走全部排队项提交，否则等待；
+     * 提交期间新到达的项排入下一批，由下一个空闲的等待者提交。
+     */
+    private void groupCommit(Commit commit) throws IOException {
+        lock.lock();
+        try {
+            pending.add(commit);
+            while (!commit.done) {
+                if (committing) {
+                    batchDone.awaitUninterruptibly();
+                    continue;
+                }
+                committing = true;
+                List<Commit> batch = pending;
+                pending = new ArrayList<>();
+                lock.unlock();
+                try {
+                    commitBatch(batch);
+                } finally {
+                    lock.lock();
+                    committing = false;
+                    for (Commit c : batch) c.done = true;
+                    batchDone.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (commit.error != null) throw commit.error;
+    }
+
+    private void commitBatch(List<Commit> batch) {
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Commit c : batch) {
+            dirs.addAll(c.dirs);
+            if (c.file == null) continue;
+            try {
+                c.file.channel.force(true);
+                c.file.channel.close();
+                c.file.publish(c.target);
+                if (c.target != null) dirs.add(c.target.getParent());
+            } catch (IOException e) {
+                c.error = e;
+            }
+        }
+        for (Path dir : dirs) syncDirectory(dir);
+        if (batch.size() > 1) log.debug("Group commit: {} files, {} directories", batch.size(), dirs.size());
+    }
+
+    /**
+     * fsync 目录，使其中的改名持久化；不支持打开目录的平台（Windows）上忽略。
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel fc = FileChannel.open(dir, StandardOpenOption.READ)) {
+            fc.force(true);
+        } catch (IOException e) {
+            log.debug("Directory fsync not supported for {}: {}", dir, e.getMessage());
+        }
+    }
+}
@@ -1,23 +1,58 @@
 package com.linearizability.http;
 
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Comparator;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 /**
  * 文件中转
@@ -44,32 +79,127 @@ public class FileTransferServer {
     private static final int DEFAULT_PORT = 8080;
     private static final String DEFAULT_STORAGE_SUFFIX = "data/transfer_storage";
     private static final String DEFAULT_STORAGE_FALLBACK = System.getProperty("user.home") + "/.filetransfer/storage";
+    static final String META_DIR = ".transfer"; // 存储目录下的内部元数据目录，不对外列出和下载
+    private static final String UPLOAD_SESSIONS_DIR = "uploads";
+    private static final String DIGESTS_DIR = "digests";
+    private static final String COMPRESSED_DIR = "compressed";
+    private static final String INCOMING_DIR = "incoming"; // 上传暂存目录，完整接收后原子改名到存储目录
+    private static final String JOURNAL_FILE = "journal";
+
+    // ============ 运行配置（可通过 -Dfiletransfer.xxx 覆盖） ============
+    // 执行模型：virtual（每个请求一个虚拟线程，默认）或 platform（固定大小的平台线程池）
+    private static final String EXECUTOR_MODE = System.getProperty("filetransfer.executor", "virtual");
+    private static final int PLATFORM_THREADS = Integer.getInteger("filetransfer.threads", Runtime.getRuntime().availableProcessors() * 2);
+    // 同时进行的上传/下载数上限，超出后排队等待 TRANSFER_ACQUIRE_TIMEOUT_SECONDS，仍无空位则返回 503
+    private static final int MAX_CONCURRENT_TRANSFERS = Integer.getInteger("filetransfer.maxTransfers", 64);
+    private static final long TRANSFER_ACQUIRE_TIMEOUT_SECONDS = Long.getLong("filetransfer.acquireTimeoutSeconds", 30L);
+    // 存储索引的全量扫描间隔，作为 WatchService 事件丢失时的兜底
+    private static final long INDEX_RESCAN_SECONDS = Long.getLong("filetransfer.indexRescanSeconds", 300L);
+    // 存储布局：flat（全部文件位于存储目录下，默认）或 sharded（按文件名哈希分到两级前缀目录，见 StorageLayout），切换后启动时自动迁移
+    private static final String STORAGE_LAYOUT = System.getProperty("filetransfer.layout", "flat");
+    // 元数据日志：启动时回放日志重建索引，不再扫描存储目录（见 MetadataJournal）
+    private static final boolean JOURNAL_ENABLED = Boolean.parseBoolean(System.getProperty("filetransfer.journal", "true"));
+    // 存储模式：plain（按文件名直接写入，默认）或 dedup（按 SHA-256 内容寻址去重，见 ContentStore）
+    private static final String STORAGE_MODE = System.getProperty("filetransfer.storageMode", "plain");
+    // 预压缩变体缓存的总大小上限，以及参与压缩的最小文件大小
+    private static final long COMPRESS_CACHE_BYTES = Long.getLong("filetransfer.compressCacheBytes", 1024L * 1024 * 1024);
+    private static final long COMPRESS_MIN_BYTES = Long.getLong("filetransfer.compressMinBytes", 4096L);
+    // 热点小文件内存缓存的总大小上限（0 表示不启用），以及可缓存的单个文件大小上限（见 HotFileCache）
+    private static final long HOT_CACHE_BYTES = Long.getLong("filetransfer.hotCacheBytes", 64L * 1024 * 1024);
+    private static final long HOT_CACHE_MAX_FILE_BYTES = Long.getLong("filetransfer.hotCacheMaxFileBytes", 256L * 1024);
+    // 带宽上限（字节/秒，0 表示不限速）：全局、每个客户端 IP、每个传输；运行期可通过 /admin/limits 调整
+    private static final long RATE_GLOBAL = Long.getLong("filetransfer.rate.global", 0L);
+    private static final long RATE_PER_CLIENT = Long.getLong("filetransfer.rate.perClient", 0L);
+    private static final long RATE_PER_TRANSFER = Long.getLong("filetransfer.rate.perTransfer", 0L);
+    // 上传落盘策略：none（不主动 fsync，默认）、close（每个文件 fsync）或 group（并发上传组提交，见 FileSync）
+    private static final String FSYNC_POLICY = System.getProperty("filetransfer.fsync", "none");
+    // Content-Length 已知时为上传文件预分配磁盘块（仅 Linux，需以 --enable-native-access=ALL-UNNAMED 启动，见 Preallocator）
+    private static final boolean PREALLOCATE = Boolean.parseBoolean(System.getProperty("filetransfer.preallocate", "true"));
+    // 传输缓冲区池容量（个，每个 BUFFER_SIZE），默认与并发传输上限一致；全部借出时临时分配并计入耗尽指标
+    private static final int BUFFER_POOL_SIZE = Integer.getInteger("filetransfer.bufferPool.size", MAX_CONCURRENT_TRANSFERS);
+    // 存储配额（字节，0 表示不限）与 TTL（小时，0 表示不按时间淘汰）；淘汰顺序 access（最近访问）或 age（上传时间），见 StorageQuota
+    private static final long QUOTA_BYTES = Long.getLong("filetransfer.quota.bytes", 0L);
+    private static final long QUOTA_TTL_HOURS = Long.getLong("filetransfer.quota.ttlHours", 0L);
+    private static final String QUOTA_ORDER = System.getProperty("filetransfer.quota.order", "access");
+    private static final long QUOTA_SWEEP_SECONDS = Long.getLong("filetransfer.quota.sweepSeconds", 60L);
+    private static final long QUOTA_RESERVE_WAIT_MILLIS = Long.getLong("filetransfer.quota.reserveWaitMillis", 5000L);
+    // /archive 打包下载的 DEFLATE 级别，默认优先吞吐量
+    private static final int ARCHIVE_DEFLATE_LEVEL = Integer.getInteger("filetransfer.archive.level", Deflater.BEST_SPEED);
 
     // ============ HTTP 路由常量 ============
     private static final String CONTEXT_ROOT = "/";
     private static final String CONTEXT_UPLOAD = "/upload";
     private static final String CONTEXT_FILES = "/files/";
+    private static final String CONTEXT_UPLOADS = "/uploads";
+    private static final String CONTEXT_API_FILES = "/api/files";
+    private static final String CONTEXT_BY_HASH = "/by-hash";
+    private static final String CONTEXT_ADMIN_LIMITS = "/admin/limits";
+    private static final String CONTEXT_ADMIN_PINS = "/admin/pins";
+    private static final String CONTEXT_METRICS = "/metrics";
+    private static final String CONTEXT_PROGRESS = "/progress/";
+    private static final String CONTEXT_ARCHIVE = "/archive";
+    private static final String UPLOAD_PROGRESS_PARAM = "progress"; // POST /upload?progress={id}：将进度发布到 /progress/{id}
+    private static final String UPLOAD_COMMIT_SUFFIX = "/commit";
 
     // ============ 资源与模板常量 ============
     private static final String TEMPLATE_RESOURCE = "/static/index.html";
     private static final String FILE_ITEM_RESOURCE = "/static/file-item.html";
-    private static final String FILES_PLACEHOLDER = "{{FILES}}";
-    private static final String UPLOAD_PATH_PLACEHOLDER = "{{UPLOAD_PATH}}";
+    // 模板占位符名（模板中写作 {{NAME}}）
+    private static final String FILES_PLACEHOLDER = "FILES";
+    private static final String UPLOAD_PATH_PLACEHOLDER = "UPLOAD_PATH";
+    private static final String PAGINATION_PLACEHOLDER = "PAGINATION";
+    private static final String ITEM_URL_PLACEHOLDER = "URL";
+    private static final String ITEM_NAME_PLACEHOLDER = "NAME";
+    private static final String ITEM_SIZE_PLACEHOLDER = "SIZE";
+
+    // ============ 上传进度推送（SSE） ============
+    private static final int PROGRESS_MAX_CHANNELS = 1024; // 同时跟踪的上传 ID 上限
+    private static final int PROGRESS_MAX_SUBSCRIBERS = 256; // 同时保持的 SSE 连接上限
+    private static final long PROGRESS_HEARTBEAT_MILLIS = 15_000; // 无更新时的心跳间隔，防止代理断开空闲连接
+
+    // ============ 文件列表分页 ============
+    private static final int DEFAULT_LIST_LIMIT = 100;
+    private static final int MAX_LIST_LIMIT = 1000;
+    private static final String DEFAULT_LIST_SORT = "-name"; // 字段名前加 "-" 表示倒序
+    private static final int LISTING_BUFFER_SIZE = 16 * 1024; // 列表响应的写缓冲，合并小片段后再按 chunk 发出
 
     // ============ HTTP 协议常量 ============
     private static final String HTTP_POST = "POST";
     private static final String HTTP_GET = "GET";
+    private static final String HTTP_HEAD = "HEAD";
+    private static final String HTTP_PUT = "PUT";
+    private static final String HTTP_DELETE = "DELETE";
     private static final String HEADER_LOCATION = "Location";
     private static final String HEADER_CONTENT_TYPE = "Content-Type";
     private static final String HEADER_CONTENT_DISPOSITION = "Content-Disposition";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_IF_RANGE = "If-Range";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_DIGEST = "Digest";
+    private static final String HEADER_REPR_DIGEST = "Repr-Digest";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String HEADER_VARY = "Vary";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String ACCEPT_RANGES_BYTES = "bytes";
+    private static final String CONTENT_TYPE_MULTIPART_BYTERANGES = "multipart/byteranges; boundary=";
     private static final String CONTENT_TYPE_HTML = "text/html; charset=utf-8";
-    private static final String CONTENT_TYPE_OCTET_STREAM = "application/octet-stream";
+    private static final String CONTENT_TYPE_JSON = "application/json; charset=utf-8";
+    private static final String CONTENT_TYPE_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String CONTENT_TYPE_EVENT_STREAM = "text/event-stream; charset=utf-8";
+    private static final String CONTENT_TYPE_ZIP = "application/zip";
+    private static final String CONTENT_TYPE_FORM = "application/x-www-form-urlencoded";
     private static final String CONTENT_DISPOSITION_ATTACHMENT = "attachment; filename=\"";
 
     // ============ Multipart 协议常量 ============
     private static final String CRLF = "\r\n";
-    private static final byte[] CRLF_BYTES = CRLF.getBytes(StandardCharsets.ISO_8859_1);
-    private static final byte[] CRLF_CRLF_BYTES = (CRLF + CRLF).getBytes(StandardCharsets.ISO_8859_1);
     private static final String BOUNDARY_PREFIX = "--";
     private static final String BOUNDARY_PARAM = "boundary=";
     private static final String CONTENT_DISPOSITION = "Content-Disposition";
@@ -80,200 +210,212 @@ public class FileTransferServer {
     private static final int MB = 1024 * 1024;
     private static final long PROGRESS_INTERVAL_BYTES = 100L * MB; // 进度回调间隔（100MB）
     private static final int BUFFER_SIZE = 1 * MB; // 4MB 缓冲区，提升大文件传输效率
+    private static final long TRANSFER_CHUNK_SIZE = 16L * MB; // 零拷贝单次 transferTo 上限，便于进度回调
+    private static final long DEFAULT_UPLOAD_CHUNK_SIZE = 8L * MB; // 分块上传默认分块大小
+    private static final long MIN_UPLOAD_CHUNK_SIZE = 64L * 1024;
+    private static final long MAX_UPLOAD_CHUNK_SIZE = 64L * MB;
+    private static final long UPLOAD_SESSION_TTL_MILLIS = 7L * 24 * 60 * 60 * 1000; // 未完成会话保留 7 天
     private static final String CHARSET_UTF8 = StandardCharsets.UTF_8.name();
     private static final String CHARSET_ISO_8859_1 = StandardCharsets.ISO_8859_1.name();
+    private static final int ARCHIVE_MAX_FORM_BYTES = 1 * MB; // POST /archive 表单（文件名列表）大小上限
+    private static final int ARCHIVE_BUFFER_SIZE = 64 * 1024; // 合并 ZIP 文件头等小片段后再按 chunk 发出
 
-    // ============ 性能优化缓存 ============
-    // Content-Type 缓存：避免重复检测文件类型，提升下载响应速度
-    private static final ConcurrentHashMap<String, String> contentTypeCache = new ConcurrentHashMap<>();
+    // ============ 运行指标 ============
+    // 传输热路径上只做 LongAdder 累加，由 /metrics 汇总输出
+    private static final TransferMetrics metrics = new TransferMetrics();
+    // 上传解析、分块写入与非零拷贝下载共用的缓冲区池，避免每个请求分配 1MB 缓冲区
+    private static final BufferPool buffers = new BufferPool(BUFFER_SIZE, BUFFER_POOL_SIZE, metrics);
 
     /**
      * 流式解析 multipart 请求体并保存文件到磁盘。
      * <p>
      * 实现要点：
-     * - 使用可配置大小的缓冲区逐块读取，避免一次性将整个请求加载到内存；
-     * - 维护一个 overlap 缓冲以处理边界跨块的情况；
-     * - 在解析到文件部分时逐块写入文件并定期回调上传进度。
+     * - 由 {@link MultipartScanner} 在单个缓冲区上扫描边界，数据切片直接写入文件，不做中间拷贝；
+     * - 文件先写入暂存目录，完整接收后才按落盘策略原子替换目标文件（见 {@link FileSync}）；
+     * - 非文件字段（无 filename）的内容被忽略，不会中断后续文件的解析；
+     * - 在写入文件数据时定期回调上传进度。
      *
      * @param in            请求体输入流（multipart/form-data）
      * @param boundaryBytes multipart 边界字节数组（以 "--" 开头）
-     * @param storage       存储目录
+     * @param layout        存储目录布局
+     * @param index         存储索引，文件保存后立即更新
+     * @param contentStore  去重存储，为 null 时直接按文件名写入存储目录
+     * @param fileSync      暂存文件的创建与提交
+     * @param digestStore   内容摘要记录，写入时同步计算的 SHA-256 保存于此
      * @param progressListener 可选的进度回调（可为 null）
+     * @param clientIp      客户端 IP（用于 JFR 事件）
+     * @param progress      进度推送通道（可为 null）
+     * @return 所有文件 part 写入的字节数
      * @throws IOException  IO 失败时抛出
      */
-    private static void parseMulitpartStream(InputStream in, byte[] boundaryBytes, Path storage,
-                                            UploadProgressListener progressListener, long totalRequestBytes) throws IOException {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        byte[] overlap = new byte[BUFFER_SIZE]; // 存储跨越缓冲区的数据
-        int overlapLen = 0;
-        int bytesRead;
-        long totalBytesRead = 0; // 进度追踪
-
-        // 阶段 1: 查找第一个 boundary
-        boolean foundFirstBoundary = false;
-
-        while (!foundFirstBoundary && (bytesRead = in.read(buffer)) != -1) {
-            totalBytesRead += bytesRead;
-            byte[] searchBuf = new byte[overlapLen + bytesRead];
-            System.arraycopy(overlap, 0, searchBuf, 0, overlapLen);
-            System.arraycopy(buffer, 0, searchBuf, overlapLen, bytesRead);
-
-            int boundaryIdx = indexOf(searchBuf, boundaryBytes, 0);
-            if (boundaryIdx >= 0) {
-                foundFirstBoundary = true;
-                // 跳过 boundary 并调整缓冲区位置
-                int startPos = boundaryIdx + boundaryBytes.length;
-                if (startPos + 2 <= searchBuf.length && searchBuf[startPos] == '\r' && searchBuf[startPos + 1] == '\n') {
-                    startPos += 2;
-                }
-                // 保存剩余数据到 overlap
-                overlapLen = searchBuf.length - startPos;
-                if (overlapLen > 0) {
-                    System.arraycopy(searchBuf, startPos, overlap, 0, overlapLen);
-                }
-            } else {
-                // 保存可能跨越缓冲区的数据
-                overlapLen = Math.min(bytesRead, boundaryBytes.length - 1);
-                if (overlapLen > 0) {
-                    System.arraycopy(buffer, bytesRead - overlapLen, overlap, 0, overlapLen);
-                }
+    private static long parseMulitpartStream(InputStream in, byte[] boundaryBytes, StorageLayout layout, StorageIndex index, ContentStore contentStore,
+                                             FileSync fileSync, DigestStore digestStore, UploadProgressListener progressListener, long totalRequestBytes,
+                                             String clientIp, ProgressBus.Channel progress) throws IOException {
+        MultipartScanner scanner = new MultipartScanner(boundaryBytes);
+        TransferEvents.MultipartParse event = new TransferEvents.MultipartParse();
+        // 分阶段计时只在录制时开启，未录制时不包装流
+        boolean timed = event.isEnabled();
+        TransferEvents.TimedInputStream timedIn = timed ? new TransferEvents.TimedInputStream(in) : null;
+        long start = System.nanoTime();
+        event.begin();
+        FilePartWriter writer = new FilePartWriter(layout, index, contentStore, fileSync, digestStore, progressListener,
+                totalRequestBytes > 0 ? totalRequestBytes : -1, clientIp, timed, progress);
+        try (writer; BufferPool.Lease buffer = buffers.lease()) {
+            scanner.scan(timed ? timedIn : in, buffer.buffer(), writer);
+        } finally {
+            metrics.multipartNanos.add(System.nanoTime() - start);
+            metrics.multipartBytes.add(writer.receivedBytes);
+            event.end();
+            if (event.shouldCommit()) {
+                event.clientIp = clientIp;
+                event.bytes = writer.receivedBytes;
+                event.parts = writer.parts;
+                event.readTime = timedIn != null ? timedIn.nanos : 0;
+                event.writeTime = writer.totalWriteNanos;
+                event.commit();
             }
         }
+        return writer.receivedBytes;
+    }
 
-        if (!foundFirstBoundary) return;
-
-        // 阶段 2: 循环处理每个 part
-        while (true) {
-            ByteArrayOutputStream partBuffer = new ByteArrayOutputStream();
-            boolean foundHeaderEnd = false;
-
-            // 收集 headers（直到 CRLF CRLF）
-            while (!foundHeaderEnd) {
-                if (overlapLen > 0) {
-                    int crlfcrlfIdx = indexOf(overlap, CRLF_CRLF_BYTES, 0);
-                    if (crlfcrlfIdx >= 0) {
-                        partBuffer.write(overlap, 0, crlfcrlfIdx);
-                        foundHeaderEnd = true;
-                        // 跳过 headers 和 CRLF CRLF，保存剩余数据
-                        int dataStart = crlfcrlfIdx + CRLF_CRLF_BYTES.length;
-                        overlapLen = overlapLen - dataStart;
-                        if (overlapLen > 0) {
-                            System.arraycopy(overlap, dataStart, overlap, 0, overlapLen);
-                        }
-                        break;
-                    } else {
-                        partBuffer.write(overlap, 0, overlapLen);
-                        overlapLen = 0;
-                    }
-                }
-
-                if (!foundHeaderEnd && (bytesRead = in.read(buffer)) != -1) {
-                    totalBytesRead += bytesRead;
-                    System.arraycopy(buffer, 0, overlap, overlapLen, bytesRead);
-                    overlapLen += bytesRead;
-                } else if (!foundHeaderEnd) {
-                    return; // 流结束
-                }
-            }
-
-            String headers = partBuffer.toString(CHARSET_ISO_8859_1);
-            String filename = parseFileNameFromHeaders(headers);
+    /**
+     * 将 multipart 中的文件 part 写入暂存文件，写入的同时计算 SHA-256；part 完整结束后提交到存储目录并记录到 {@link DigestStore}，
+     * 去重模式下则交给 {@link ContentStore} 入库。不完整的 part 直接丢弃，不会覆盖已有文件。
+     */
+    private static class FilePartWriter implements MultipartScanner.PartHandler, Closeable {
+        private final StorageLayout layout;
+        private final StorageIndex index;
+        private final ContentStore contentStore;
+        private final FileSync fileSync;
+        private final DigestStore digestStore;
+        private final UploadProgressListener progressListener;
+        private final long totalBytes;
+        private final String clientIp;
+        private final boolean timed; // JFR 录制中：统计磁盘写入耗时
+        private final ProgressBus.Channel progress;
+        private long receivedBytes; // 所有文件 part 已写入的字节数
+        private int parts;
+        private long totalWriteNanos;
+        private long partWriteNanos;
+        private TransferEvents.UploadFile fileEvent;
+        private String filename;
+        private Path target;
+        private FileSync.Staged staged;
+        private MessageDigest digest;
+        private OutputStream fileOut;
+        private long fileDataLength;
+
+        FilePartWriter(StorageLayout layout, StorageIndex index, ContentStore contentStore, FileSync fileSync, DigestStore digestStore,
+                       UploadProgressListener progressListener, long totalBytes, String clientIp, boolean timed,
+                       ProgressBus.Channel progress) {
+            this.layout = layout;
+            this.index = index;
+            this.contentStore = contentStore;
+            this.fileSync = fileSync;
+            this.digestStore = digestStore;
+            this.progressListener = progressListener;
+            this.totalBytes = totalBytes;
+            this.clientIp = clientIp;
+            this.timed = timed;
+            this.progress = progress;
+        }
 
+        @Override
+        public void onPartStart(String headers) throws IOException {
+            filename = parseFileNameFromHeaders(headers);
             if (filename == null || filename.isEmpty()) {
-                break;
+                return; // 普通表单字段
             }
+            String safe;
+            try {
+                safe = safeFilename(filename);
+            } catch (IllegalArgumentException e) {
+                log.warn("Skipping file part with invalid name: {}", filename);
+                return; // 与普通表单字段一样忽略其数据
+            }
+            target = layout.resolve(safe);
+            digest = ContentStore.newDigest();
+            // 请求剩余长度是本文件大小的上限，用于预分配，提交时截断到实际长度
+            staged = fileSync.create(totalBytes > 0 ? totalBytes - receivedBytes : -1);
+            fileOut = new DigestOutputStream(staged.outputStream(), digest);
+            fileDataLength = 0;
+            partWriteNanos = 0;
+            parts++;
+            fileEvent = new TransferEvents.UploadFile();
+            fileEvent.begin();
+        }
 
-            // 阶段 3: 读取文件数据（直到下一个 boundary）
-            String normalized = normalizeFilename(filename);
-            String safe = Paths.get(normalized).getFileName().toString();
-            Path target = storage.resolve(safe);
-
-            // 已解析并归一化文件名
-
-            long fileDataStart = totalBytesRead - overlapLen; // 文件数据开始位置
-            long fileDataLength = 0; // 文件实际数据长度（不含 boundary）
-
-            try (OutputStream fileOut = Files.newOutputStream(target)) {
-                boolean foundNextBoundary = false;
-
-                while (!foundNextBoundary) {
-                    // 在缓冲区中查找 boundary
-                    int boundaryIdx = indexOf(overlap, boundaryBytes, 0);
-
-                    if (boundaryIdx >= 0) {
-                        // 写入 boundary 前的数据（去掉最后的 CRLF）
-                        int writeLen = boundaryIdx;
-                        if (writeLen >= CRLF_BYTES.length &&
-                                overlap[writeLen - 2] == '\r' && overlap[writeLen - 1] == '\n') {
-                            writeLen -= CRLF_BYTES.length;
-                        }
-                        if (writeLen > 0) {
-                            fileOut.write(overlap, 0, writeLen);
-                            fileDataLength += writeLen;
-                        }
-
-                        foundNextBoundary = true;
-
-                        // 跳过 boundary，检查是否为结束标记 (--boundary--)
-                        int nextPos = boundaryIdx + boundaryBytes.length;
-                        boolean isEnd = false;
-                        if (nextPos + 2 <= overlapLen && overlap[nextPos] == '-' && overlap[nextPos + 1] == '-') {
-                            isEnd = true;
-                            nextPos += 2;
-                        }
-
-                        // 跳过后续的 CRLF
-                        if (nextPos + 2 <= overlapLen && overlap[nextPos] == '\r' && overlap[nextPos + 1] == '\n') {
-                            nextPos += 2;
-                        }
-
-                        overlapLen = overlapLen - nextPos;
-                        if (overlapLen > 0) {
-                            System.arraycopy(overlap, nextPos, overlap, 0, overlapLen);
-                        }
-
-                        // 触发进度回调
-                        if (progressListener != null && fileDataLength > 0) {
-                            progressListener.onProgress(filename, fileDataStart + fileDataLength, totalRequestBytes > 0 ? totalRequestBytes : -1);
-                        }
+        @Override
+        public void onPartData(byte[] buf, int off, int len) throws IOException {
+            if (fileOut == null) return;
+            if (timed) {
+                long start = System.nanoTime();
+                fileOut.write(buf, off, len);
+                long elapsed = System.nanoTime() - start;
+                partWriteNanos += elapsed;
+                totalWriteNanos += elapsed;
+            } else {
+                fileOut.write(buf, off, len);
+            }
+            fileDataLength += len;
+            receivedBytes += len;
+            metrics.bytesReceived.add(len);
+            if (progress != null) progress.update(filename, receivedBytes, totalBytes);
+
+            // 定期触发进度回调（每 PROGRESS_INTERVAL_BYTES 触发一次）
+            if (progressListener != null && fileDataLength % PROGRESS_INTERVAL_BYTES < len) {
+                progressListener.onProgress(filename, receivedBytes, totalBytes);
+            }
+        }
 
-                        if (isEnd) {
-                            log.info("Saved: {} ({} bytes)", target, fileDataLength);
-                            return; // 文件传输结束
+        @Override
+        public void onPartEnd(boolean complete) throws IOException {
+            if (fileOut == null) return;
+            fileOut = null; // DigestOutputStream 无缓冲，关闭会连带关闭通道，交给 staged 提交
+            String sha256 = HexFormat.of().formatHex(digest.digest());
+            try (FileSync.Staged file = staged) {
+                staged = null;
+                if (complete) {
+                    if (contentStore != null) {
+                        file.commit(null);
+                        try {
+                            contentStore.commit(file.path(), sha256, target.getFileName().toString());
+                        } catch (IOException | RuntimeException e) {
+                            Files.deleteIfExists(file.path());
+                            throw e;
                         }
                     } else {
-                        // 保留可能跨越缓冲区的 boundary
-                        int safeWriteLen = Math.max(0, overlapLen - boundaryBytes.length + 1);
-                        if (safeWriteLen > 0) {
-                            fileOut.write(overlap, 0, safeWriteLen);
-                            fileDataLength += safeWriteLen;
-                            
-                            // 定期触发进度回调（每 PROGRESS_INTERVAL_BYTES 触发一次）
-                            if (progressListener != null && fileDataLength % PROGRESS_INTERVAL_BYTES < safeWriteLen) {
-                                progressListener.onProgress(filename, fileDataStart + fileDataLength, totalRequestBytes > 0 ? totalRequestBytes : -1);
-                            }
-                        }
-
-                        // 读取下一块数据
-                        if ((bytesRead = in.read(buffer)) != -1) {
-                            totalBytesRead += bytesRead;
-                            System.arraycopy(overlap, safeWriteLen, overlap, 0, overlapLen - safeWriteLen);
-                            overlapLen = overlapLen - safeWriteLen;
-                            System.arraycopy(buffer, 0, overlap, overlapLen, bytesRead);
-                            overlapLen += bytesRead;
-                        } else {
-                            // 流意外结束
-                            if (overlapLen > 0) {
-                                fileOut.write(overlap, 0, overlapLen);
-                                fileDataLength += overlapLen;
-                            }
-                            log.warn("Stream ended unexpectedly while reading file: {}", filename);
-                            return;
-                        }
+                        file.commit(layout.prepare(target.getFileName().toString()));
                     }
+                    digestStore.put(target, sha256);
+                    index.refresh(target.getFileName().toString(), sha256);
                 }
-
+            }
+            if (progressListener != null && fileDataLength > 0) {
+                progressListener.onProgress(filename, receivedBytes, totalBytes);
+            }
+            if (complete) {
                 log.info("Saved: {} ({} bytes)", target, fileDataLength);
+            } else {
+                log.warn("Stream ended unexpectedly while reading file: {}, partial data discarded", filename);
+            }
+            fileEvent.end();
+            if (fileEvent.shouldCommit()) {
+                fileEvent.clientIp = clientIp;
+                fileEvent.fileName = target.getFileName().toString();
+                fileEvent.bytes = fileDataLength;
+                fileEvent.complete = complete;
+                fileEvent.writeTime = partWriteNanos;
+                fileEvent.commit();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            fileOut = null;
+            if (staged != null) {
+                staged.close();
+                staged = null;
             }
         }
     }
@@ -411,61 +553,62 @@ public class FileTransferServer {
     }
 
     /**
-     * 在字节数组 outer 中查找 target 的第一次出现位置。
-     * 对较短的 target 使用朴素查找，对较长的 target 使用简化的 Boyer-Moore 算法以提升查找效率。
+     * 将客户端提供的文件名归一化并只保留最后一段路径，得到存储目录下的文件名。
      *
-     * @param outer 外部字节数组
-     * @param target 目标字节数组
-     * @param from 起始搜索位置
-     * @return 匹配位置或 -1
+     * @param fn 原始文件名（非空）
+     * @return 安全的文件名
+     * @throws IllegalArgumentException 没有文件名部分（如 "/"）、为 "." 或 ".."、与内部目录同名
      */
-    private static int indexOf(byte[] outer, byte[] target, int from) {
-        if (target.length == 0) return from;
-        
-        // 对短 target 使用简单算法
-        if (target.length < 4) {
-            outer:
-            for (int i = from; i <= outer.length - target.length; i++) {
-                for (int j = 0; j < target.length; j++) {
-                    if (outer[i + j] != target[j]) continue outer;
-                }
-                return i;
-            }
-            return -1;
-        }
-        
-        // 对长 target 使用优化的查找（Boyer-Moore 简化版）
-        int outerLen = outer.length;
-        int targetLen = target.length;
-        
-        // 构建 bad character 表（仅对最后一个字符）
-        int[] badCharShift = new int[256];
-        for (int i = 0; i < 256; i++) {
-            badCharShift[i] = targetLen;
-        }
-        for (int i = 0; i < targetLen - 1; i++) {
-            badCharShift[target[i] & 0xFF] = targetLen - 1 - i;
-        }
-        
-        int i = from + targetLen - 1;
-        while (i < outerLen) {
-            int j = targetLen - 1;
-            int k = i;
-            
-            while (j >= 0 && outer[k] == target[j]) {
-                j--;
-                k--;
+    private static String safeFilename(String fn) {
+        Path last = Paths.get(normalizeFilename(fn)).getFileName();
+        String safe = last == null ? "" : last.toString();
+        if (safe.isEmpty() || ".".equals(safe) || "..".equals(safe) || META_DIR.equals(safe)) {
+            throw new IllegalArgumentException("invalid name");
+        }
+        return safe;
+    }
+
+    // ============ 文件下发逻辑 ============
+    /**
+     * 将文件 [position, position + count) 区间写出到响应流。
+     * <p>
+     * 若响应流实现了 {@link FileRegionSink}（如 {@link NioHttpServer} 的响应流），则通过 {@link FileChannel#transferTo}
+     * 直接写入 socket（Linux 上为 sendfile），数据不经过 Java 堆；否则（默认的 JDK 引擎）回退到借用池中缓冲区的位置读 + 写出。
+     *
+     * @param fc       已打开的文件通道
+     * @param position 起始偏移
+     * @param count    需要写出的字节数
+     * @param out      响应输出流
+     * @param progress 进度回调，参数为已写出的字节数（可为 null）
+     * @return 实际写出的字节数
+     * @throws IOException IO 失败时抛出
+     */
+    private static long transferFile(FileChannel fc, long position, long count, OutputStream out,
+                                     LongConsumer progress) throws IOException {
+        long transferred = 0;
+        if (out instanceof FileRegionSink sink) {
+            while (transferred < count) {
+                long n = sink.transferFrom(fc, position + transferred, Math.min(TRANSFER_CHUNK_SIZE, count - transferred));
+                if (n <= 0) break; // 文件被截断
+                transferred += n;
+                if (progress != null) progress.accept(transferred);
             }
-            
-            if (j < 0) {
-                return k + 1; // 找到匹配
+            return transferred;
+        }
+
+        try (BufferPool.Lease lease = buffers.lease()) {
+            byte[] buffer = lease.buffer();
+            ByteBuffer bb = ByteBuffer.wrap(buffer);
+            while (transferred < count) {
+                bb.clear().limit((int) Math.min(buffer.length, count - transferred));
+                int n = fc.read(bb, position + transferred);
+                if (n <= 0) break; // 文件被截断
+                out.write(buffer, 0, n);
+                transferred += n;
+                if (progress != null) progress.accept(transferred);
             }
-            
-            int shift = badCharShift[outer[i] & 0xFF];
-            i += shift;
         }
-        
-        return -1;
+        return transferred;
     }
 
     // ============ 工具方法 ============
@@ -482,6 +625,56 @@ public class FileTransferServer {
         return baos.toByteArray();
     }
 
+    /**
+     * 解析 URL 查询字符串（如 "name=a.txt&amp;size=10"），键值均按 UTF-8 解码。
+     */
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) return params;
+        for (String pair : rawQuery.split("&")) {
+            String[] keyValue = pair.split("=", 2);
+            String key = URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8);
+            String value = keyValue.length > 1 ? URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8) : "";
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    /**
+     * 将字符串编码为 JSON 字符串字面量（含两侧引号）。
+     */
+    private static String jsonString(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * 发送 JSON 响应。
+     */
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] resp = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(HEADER_CONTENT_TYPE, CONTENT_TYPE_JSON);
+        exchange.sendResponseHeaders(status, resp.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(resp);
+        }
+    }
+
     /**
      * 简单的 HTML 转义，用于在模板中安全显示文件名和 URL。
      */
@@ -490,6 +683,13 @@ public class FileTransferServer {
         return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&#39;");
     }
 
+    /**
+     * 将毫秒时间戳格式化为 HTTP-date（RFC 1123，GMT）。
+     */
+    private static String formatHttpDate(long epochMillis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(epochMillis).atZone(ZoneOffset.UTC));
+    }
+
     /**
      * 将字节数格式化为带单位的字符串，例如 "1.23 MB"。
      */
@@ -535,26 +735,70 @@ public class FileTransferServer {
         return Paths.get("transfer_storage").toAbsolutePath().toString();
     }
 
+    /**
+     * 文件列表分页参数：?offset=&amp;limit=&amp;sort=，sort 取 name / size / mtime，前缀 "-" 表示倒序。
+     */
+    private record ListingQuery(int offset, int limit, String sort, StorageIndex.Order order, boolean descending) {
+
+        static ListingQuery parse(String rawQuery) {
+            Map<String, String> query = parseQuery(rawQuery);
+            int offset = parseIntParam(query, "offset", 0);
+            int limit = parseIntParam(query, "limit", DEFAULT_LIST_LIMIT);
+            if (offset < 0) throw new IllegalArgumentException("offset must not be negative");
+            if (limit < 1 || limit > MAX_LIST_LIMIT) throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIST_LIMIT);
+
+            String sort = query.getOrDefault("sort", DEFAULT_LIST_SORT);
+            boolean descending = sort.startsWith("-");
+            StorageIndex.Order order = switch (descending ? sort.substring(1) : sort) {
+                case "name" -> StorageIndex.Order.NAME;
+                case "size" -> StorageIndex.Order.SIZE;
+                case "mtime" -> StorageIndex.Order.MTIME;
+                default -> throw new IllegalArgumentException("sort must be one of name, size, mtime (prefix - for descending)");
+            };
+            return new ListingQuery(offset, limit, sort, order, descending);
+        }
+
+        List<StorageIndex.Entry> page(List<StorageIndex.Entry> all) {
+            int from = Math.min(offset, all.size());
+            return all.subList(from, Math.min(all.size(), from + limit));
+        }
+
+        String link(int newOffset) {
+            return CONTEXT_ROOT + "?offset=" + newOffset + "&limit=" + limit + "&sort=" + URLEncoder.encode(sort, StandardCharsets.UTF_8);
+        }
+
+        private static int parseIntParam(Map<String, String> query, String key, int defaultValue) {
+            String v = query.get(key);
+            if (v == null) return defaultValue;
+            try {
+                return Integer.parseInt(v.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(key + " must be a number");
+            }
+        }
+    }
+
     static class RootHandler implements HttpHandler {
-        private final Path storage;
-        private final String template;
-        private final String fileItemTemplate;
+        private final StorageIndex index;
+        private final HtmlTemplate template;
+        private final HtmlTemplate fileItemTemplate;
+        private final byte[] uploadPath = CONTEXT_UPLOAD.getBytes(StandardCharsets.UTF_8);
 
-        RootHandler(Path storage) throws IOException {
-            this.storage = storage;
+        RootHandler(StorageIndex index) throws IOException {
+            this.index = index;
             String t = null;
             try (InputStream is = FileTransferServer.class.getResourceAsStream(TEMPLATE_RESOURCE)) {
                 if (is != null) t = new String(readAll(is), StandardCharsets.UTF_8);
             }
             if (t == null) throw new IOException("Template resource missing: " + TEMPLATE_RESOURCE);
-            this.template = t;
+            this.template = HtmlTemplate.compile(t, FILES_PLACEHOLDER, UPLOAD_PATH_PLACEHOLDER, PAGINATION_PLACEHOLDER);
 
             String fi = null;
             try (InputStream is = FileTransferServer.class.getResourceAsStream(FILE_ITEM_RESOURCE)) {
                 if (is != null) fi = new String(readAll(is), StandardCharsets.UTF_8);
             }
             if (fi == null) throw new IOException("File item template missing: " + FILE_ITEM_RESOURCE);
-            this.fileItemTemplate = fi;
+            this.fileItemTemplate = HtmlTemplate.compile(fi, ITEM_URL_PLACEHOLDER, ITEM_NAME_PLACEHOLDER, ITEM_SIZE_PLACEHOLDER);
         }
 
         @Override
@@ -563,36 +807,130 @@ public class FileTransferServer {
                 exchange.sendResponseHeaders(405, -1);
                 return;
             }
-            StringBuilder filesHtml = new StringBuilder();
-            Files.list(storage).sorted(Comparator.reverseOrder()).forEach(p -> {
-                String name = p.getFileName().toString();
-                try {
-                    String url = CONTEXT_FILES + URLEncoder.encode(name, CHARSET_UTF8);
-                    String item = fileItemTemplate.replace("{{URL}}", escapeHtml(url)).replace("{{NAME}}", escapeHtml(name)).replace("{{SIZE}}", String.valueOf(Files.size(p)));
-                    filesHtml.append(item);
-                } catch (Exception e) { /* ignore */ }
-            });
-
-            String page = template.replace(FILES_PLACEHOLDER, filesHtml.toString()).replace(UPLOAD_PATH_PLACEHOLDER, CONTEXT_UPLOAD);
-            byte[] resp = page.getBytes(StandardCharsets.UTF_8);
+            ListingQuery query;
+            try {
+                query = ListingQuery.parse(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            TransferEvents.Listing event = new TransferEvents.Listing();
+            event.begin();
+            List<StorageIndex.Entry> all = index.list(query.order(), query.descending());
+            List<StorageIndex.Entry> page = query.page(all);
+
+            // 模板已预先切分为静态片段，逐项写出并以 chunked 编码流式发送，不拼接整页
             exchange.getResponseHeaders().set(HEADER_CONTENT_TYPE, CONTENT_TYPE_HTML);
-            exchange.sendResponseHeaders(200, resp.length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(resp);
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = new BufferedOutputStream(exchange.getResponseBody(), LISTING_BUFFER_SIZE)) {
+                template.render(os, (slot, out) -> {
+                    switch (slot) {
+                        case 0 -> {
+                            for (StorageIndex.Entry entry : page) {
+                                String url = CONTEXT_FILES + URLEncoder.encode(entry.name(), CHARSET_UTF8);
+                                fileItemTemplate.render(out, escapeHtml(url), escapeHtml(entry.name()), String.valueOf(entry.size()));
+                            }
+                        }
+                        case 1 -> out.write(uploadPath);
+                        default -> out.write(paginationHtml(query, page.size(), all.size()).getBytes(StandardCharsets.UTF_8));
+                    }
+                });
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.clientIp = exchange.getRemoteAddress().getAddress().getHostAddress();
+                event.total = all.size();
+                event.pageSize = page.size();
+                event.sort = query.sort();
+                event.commit();
             }
         }
+
+        private static String paginationHtml(ListingQuery query, int count, int total) {
+            StringBuilder sb = new StringBuilder("<p>");
+            if (count > 0) {
+                sb.append("第 ").append(query.offset() + 1).append('-').append(query.offset() + count).append(" 个，");
+            }
+            sb.append("共 ").append(total).append(" 个文件");
+            if (query.offset() > 0) {
+                sb.append(" <a href=\"").append(escapeHtml(query.link(Math.max(0, query.offset() - query.limit())))).append("\">上一页</a>");
+            }
+            if ((long) query.offset() + count < total) {
+                sb.append(" <a href=\"").append(escapeHtml(query.link(query.offset() + query.limit()))).append("\">下一页</a>");
+            }
+            return sb.append("</p>").toString();
+        }
     }
 
-    static class UploadHandler implements HttpHandler {
-        private final Path storage;
+    /**
+     * JSON 文件列表：GET /api/files?offset=&amp;limit=&amp;sort=，与列表页使用相同的分页参数。
+     */
+    static class FileListHandler implements HttpHandler {
+        private final StorageIndex index;
 
-        UploadHandler(Path storage) {
-            this.storage = storage;
+        FileListHandler(StorageIndex index) {
+            this.index = index;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!HTTP_GET.equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            ListingQuery query;
+            try {
+                query = ListingQuery.parse(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                sendJson(exchange, 400, "{\"error\":" + jsonString(e.getMessage()) + "}");
+                return;
+            }
+            List<StorageIndex.Entry> all = index.list(query.order(), query.descending());
+            List<StorageIndex.Entry> page = query.page(all);
+
+            exchange.getResponseHeaders().set(HEADER_CONTENT_TYPE, CONTENT_TYPE_JSON);
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = new BufferedOutputStream(exchange.getResponseBody(), LISTING_BUFFER_SIZE)) {
+                os.write(("{\"total\":" + all.size() + ",\"offset\":" + query.offset() + ",\"limit\":" + query.limit()
+                        + ",\"sort\":" + jsonString(query.sort()) + ",\"files\":[").getBytes(StandardCharsets.UTF_8));
+                for (int i = 0; i < page.size(); i++) {
+                    StorageIndex.Entry entry = page.get(i);
+                    String item = (i > 0 ? "," : "") + "{\"name\":" + jsonString(entry.name())
+                            + ",\"url\":" + jsonString(CONTEXT_FILES + URLEncoder.encode(entry.name(), CHARSET_UTF8))
+                            + ",\"size\":" + entry.size()
+                            + ",\"lastModified\":" + entry.lastModified() + "}";
+                    os.write(item.getBytes(StandardCharsets.UTF_8));
+                }
+                os.write("]}".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    static class UploadHandler implements HttpHandler {
+        private final StorageLayout layout;
+        private final StorageIndex index;
+        private final ContentStore contentStore;
+        private final FileSync fileSync;
+        private final DigestStore digestStore;
+        private final ProgressBus progressBus;
+        private final StorageQuota quota;
+
+        UploadHandler(StorageLayout layout, StorageIndex index, ContentStore contentStore, FileSync fileSync, DigestStore digestStore,
+                      ProgressBus progressBus, StorageQuota quota) {
+            this.layout = layout;
+            this.index = index;
+            this.contentStore = contentStore;
+            this.fileSync = fileSync;
+            this.digestStore = digestStore;
+            this.progressBus = progressBus;
+            this.quota = quota;
         }
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             long startTime = System.currentTimeMillis();
+            TransferEvents.Upload event = new TransferEvents.Upload();
+            event.begin();
 
             if (!HTTP_POST.equalsIgnoreCase(exchange.getRequestMethod())) {
                 exchange.sendResponseHeaders(405, -1);
@@ -628,8 +966,34 @@ public class FileTransferServer {
                 if (cl != null) totalRequestBytes = Long.parseLong(cl);
             } catch (Exception ignored) {}
 
-            parseMulitpartStream(exchange.getRequestBody(), boundary.getBytes(StandardCharsets.ISO_8859_1), storage, progressListener, totalRequestBytes);
-
+            String clientIP = exchange.getRemoteAddress().getAddress().getHostAddress();
+            // 按 Content-Length 预留配额，放不下时在读取请求体之前拒绝
+            StorageQuota.Reservation reservation = quota.reserve(totalRequestBytes);
+            if (reservation == null) {
+                log.warn("Upload rejected - ClientIP: {}, {} bytes exceed the storage quota", clientIP, totalRequestBytes);
+                exchange.sendResponseHeaders(507, -1);
+                exchange.close();
+                return;
+            }
+            // 页面脚本以 ?progress={id} 提交并订阅 /progress/{id}；ID 不合法或通道已满时仅不推送进度
+            ProgressBus.Channel progress = progressBus.channel(parseQuery(exchange.getRequestURI().getRawQuery()).get(UPLOAD_PROGRESS_PARAM));
+            long received;
+            try (reservation) {
+                received = parseMulitpartStream(exchange.getRequestBody(), boundary.getBytes(StandardCharsets.ISO_8859_1), layout, index,
+                        contentStore, fileSync, digestStore, progressListener, totalRequestBytes, clientIP, progress);
+            } catch (IOException | RuntimeException e) {
+                if (progress != null) progress.complete(null, 0, totalRequestBytes, e.getMessage() != null ? e.getMessage() : e.toString());
+                throw e;
+            }
+            if (progress != null) progress.complete(null, received, totalRequestBytes, null);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.clientIp = clientIP;
+                event.bytes = received;
+                event.contentLength = totalRequestBytes;
+                event.commit();
+            }
             long endTime = System.currentTimeMillis();
             double elapsedSeconds = (endTime - startTime) / 1000.0;
             log.info("Upload completed in {} seconds", String.format("%.2f", elapsedSeconds));
@@ -639,16 +1003,319 @@ public class FileTransferServer {
         }
     }
 
-    static class FileHandler implements HttpHandler {
-        private final Path storage;
+    /**
+     * 可续传的分块上传接口：
+     * <pre>
+     * POST   /uploads?name=&amp;size=[&amp;chunkSize=]  创建会话，返回会话信息
+     * PUT    /uploads/{id}?offset=N                 上传 offset 处的分块（可并发）
+     * GET    /uploads/{id}                          查询已接收的字节区间
+     * POST   /uploads/{id}/commit                   全部分块到齐后提交为正式文件
+     * DELETE /uploads/{id}                          放弃会话
+     * </pre>
+     */
+    static class ChunkedUploadHandler implements HttpHandler {
+        private final StorageLayout layout;
+        private final StorageIndex index;
+        private final ContentStore contentStore;
+        private final FileSync fileSync;
+        private final DigestStore digestStore;
+        private final StorageQuota quota;
+        private final Path sessionsDir;
+        private final ConcurrentHashMap<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+        ChunkedUploadHandler(StorageLayout layout, StorageIndex index, ContentStore contentStore, FileSync fileSync,
+                             DigestStore digestStore, StorageQuota quota) throws IOException {
+            this.layout = layout;
+            this.index = index;
+            this.contentStore = contentStore;
+            this.fileSync = fileSync;
+            this.digestStore = digestStore;
+            this.quota = quota;
+            this.sessionsDir = layout.root().resolve(META_DIR).resolve(UPLOAD_SESSIONS_DIR);
+            Files.createDirectories(sessionsDir);
+            restoreSessions();
+        }
 
-        FileHandler(Path storage) {
-            this.storage = storage;
+        /**
+         * 启动时从磁盘恢复未完成的会话，过期或损坏的会话直接清理。
+         */
+        private void restoreSessions() throws IOException {
+            long expireBefore = System.currentTimeMillis() - UPLOAD_SESSION_TTL_MILLIS;
+            try (Stream<Path> dirs = Files.list(sessionsDir)) {
+                for (Path dir : dirs.filter(Files::isDirectory).toList()) {
+                    try {
+                        UploadSession session = UploadSession.load(dir);
+                        if (session.created() < expireBefore) {
+                            session.abort();
+                            continue;
+                        }
+                        sessions.put(session.id(), session);
+                        log.info("Upload session restored: {} ({}, {}/{} chunks)", session.id(), session.name(),
+                                session.receivedChunks(), session.chunkCount());
+                    } catch (Exception e) {
+                        log.warn("Discard broken upload session: {}", dir, e);
+                    }
+                }
+            }
         }
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if (!HTTP_GET.equalsIgnoreCase(exchange.getRequestMethod())) {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            String rest = path.length() > CONTEXT_UPLOADS.length() ? path.substring(CONTEXT_UPLOADS.length() + 1) : "";
+
+            try {
+                if (rest.isEmpty()) {
+                    if (HTTP_POST.equalsIgnoreCase(method)) {
+                        create(exchange);
+                    } else {
+                        exchange.sendResponseHeaders(405, -1);
+                    }
+                    return;
+                }
+
+                boolean commit = rest.endsWith(UPLOAD_COMMIT_SUFFIX);
+                String id = commit ? rest.substring(0, rest.length() - UPLOAD_COMMIT_SUFFIX.length()) : rest;
+                UploadSession session = sessions.get(id);
+                if (session == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+
+                if (commit && HTTP_POST.equalsIgnoreCase(method)) {
+                    commit(exchange, session);
+                } else if (commit) {
+                    exchange.sendResponseHeaders(405, -1);
+                } else if (HTTP_PUT.equalsIgnoreCase(method)) {
+                    putChunk(exchange, session);
+                } else if (HTTP_GET.equalsIgnoreCase(method)) {
+                    sendJson(exchange, 200, sessionJson(session));
+                } else if (HTTP_DELETE.equalsIgnoreCase(method)) {
+                    sessions.remove(id);
+                    session.abort();
+                    exchange.sendResponseHeaders(204, -1);
+                } else {
+                    exchange.sendResponseHeaders(405, -1);
+                }
+            } catch (IllegalArgumentException e) {
+                sendJson(exchange, 400, "{\"error\":" + jsonString(e.getMessage()) + "}");
+            }
+        }
+
+        private void create(HttpExchange exchange) throws IOException {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String name = query.get("name");
+            if (name == null || name.isBlank()) throw new IllegalArgumentException("name is required");
+            String safe = safeFilename(name);
+
+            long size = parseLongParam(query, "size", -1);
+            if (size < 0) throw new IllegalArgumentException("size is required");
+            long chunkSize = parseLongParam(query, "chunkSize", DEFAULT_UPLOAD_CHUNK_SIZE);
+            if (chunkSize < MIN_UPLOAD_CHUNK_SIZE || chunkSize > MAX_UPLOAD_CHUNK_SIZE) {
+                throw new IllegalArgumentException("chunkSize must be between " + MIN_UPLOAD_CHUNK_SIZE + " and " + MAX_UPLOAD_CHUNK_SIZE);
+            }
+            if (size / chunkSize >= Integer.MAX_VALUE) throw new IllegalArgumentException("too many chunks");
+            // 会话可能持续数天，不长期占用预留，只在创建时确认配额放得下（必要时触发淘汰）
+            try (StorageQuota.Reservation reservation = quota.reserve(size)) {
+                if (reservation == null) {
+                    sendJson(exchange, 507, "{\"error\":\"storage quota exceeded\"}");
+                    return;
+                }
+            }
+
+            String id = UUID.randomUUID().toString().replace("-", "");
+            UploadSession session = UploadSession.create(sessionsDir, id, safe, size, (int) chunkSize);
+            sessions.put(id, session);
+            log.info("Upload session created: {} ({}, {}, {} chunks)", id, safe, formatBytes(size), session.chunkCount());
+
+            exchange.getResponseHeaders().set(HEADER_LOCATION, CONTEXT_UPLOADS + "/" + id);
+            sendJson(exchange, 201, sessionJson(session));
+        }
+
+        private void putChunk(HttpExchange exchange, UploadSession session) throws IOException {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            long offset = parseLongParam(query, "offset", -1);
+            if (offset < 0 || offset % session.chunkSize() != 0 || (offset >= session.size() && session.size() > 0)) {
+                throw new IllegalArgumentException("offset must be a multiple of chunkSize within the file");
+            }
+            if (session.chunkCount() == 0) {
+                // 0 字节文件没有分块：空请求体视为无操作，会话可直接提交
+                try (InputStream in = exchange.getRequestBody()) {
+                    if (in.read() != -1) throw new IllegalArgumentException("Chunk length mismatch, expected 0 bytes");
+                }
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            int index = (int) (offset / session.chunkSize());
+            try (InputStream in = exchange.getRequestBody(); BufferPool.Lease buffer = buffers.lease()) {
+                metrics.bytesReceived.add(session.writeChunk(index, in, buffer.buffer()));
+            } catch (IOException e) {
+                // 服务端 IO 失败（磁盘满、会话已关闭等）返回 5xx，客户端可重试；长度不符等客户端错误由上层按 400 返回
+                log.warn("Upload chunk failed: {} #{}: {}", session.id(), index, e.getMessage());
+                sendJson(exchange, 500, "{\"error\":" + jsonString(e.getMessage()) + "}");
+                return;
+            }
+            exchange.sendResponseHeaders(204, -1);
+        }
+
+        private void commit(HttpExchange exchange, UploadSession session) throws IOException {
+            if (!session.isComplete()) {
+                sendJson(exchange, 409, sessionJson(session));
+                return;
+            }
+            Path target = layout.prepare(session.name());
+            // 分块并发写入，无法边写边算摘要，提交时顺序读一遍
+            String sha256;
+            if (contentStore != null) {
+                Path temp = contentStore.newTempFile();
+                session.commit(temp);
+                sha256 = ContentStore.digestOf(temp);
+                contentStore.commit(temp, sha256, session.name());
+            } else {
+                // 分块数据在置位前已逐块 force，此处只需按落盘策略持久化改名
+                session.commit(target);
+                fileSync.syncDirectories(List.of(target.getParent()));
+                sha256 = ContentStore.digestOf(target);
+            }
+            digestStore.put(target, sha256);
+            sessions.remove(session.id());
+            index.refresh(session.name(), sha256);
+            log.info("Saved: {} ({} bytes) via upload session {}", target, session.size(), session.id());
+
+            String url = CONTEXT_FILES + URLEncoder.encode(session.name(), CHARSET_UTF8);
+            exchange.getResponseHeaders().set(HEADER_LOCATION, url);
+            sendJson(exchange, 201, "{\"name\":" + jsonString(session.name()) + ",\"url\":" + jsonString(url) + "}");
+        }
+
+        private static String sessionJson(UploadSession session) {
+            StringBuilder sb = new StringBuilder(128);
+            sb.append("{\"id\":").append(jsonString(session.id()))
+                    .append(",\"name\":").append(jsonString(session.name()))
+                    .append(",\"size\":").append(session.size())
+                    .append(",\"chunkSize\":").append(session.chunkSize())
+                    .append(",\"chunks\":").append(session.chunkCount())
+                    .append(",\"complete\":").append(session.isComplete())
+                    .append(",\"received\":[");
+            List<long[]> ranges = session.receivedRanges();
+            for (int i = 0; i < ranges.size(); i++) {
+                if (i > 0) sb.append(',');
+                sb.append('[').append(ranges.get(i)[0]).append(',').append(ranges.get(i)[1]).append(']');
+            }
+            return sb.append("]}").toString();
+        }
+
+        private static long parseLongParam(Map<String, String> query, String key, long defaultValue) {
+            String v = query.get(key);
+            if (v == null) return defaultValue;
+            try {
+                return Long.parseLong(v.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(key + " must be a number");
+            }
+        }
+    }
+
+    /**
+     * 按内容摘要查询与引用（仅去重模式下可用，否则一律 404）：
+     * <pre>
+     * HEAD /by-hash/{sha256}               内容已存在时返回 200 与 Content-Length，客户端可据此跳过上传
+     * PUT  /by-hash/{sha256}?name=         以 name 引用已存在的内容，无需再次上传
+     * </pre>
+     */
+    static class ByHashHandler implements HttpHandler {
+        private final StorageLayout layout;
+        private final ContentStore contentStore;
+        private final StorageIndex index;
+        private final DigestStore digestStore;
+
+        ByHashHandler(StorageLayout layout, ContentStore contentStore, StorageIndex index, DigestStore digestStore) {
+            this.layout = layout;
+            this.contentStore = contentStore;
+            this.index = index;
+            this.digestStore = digestStore;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            String digest = path.length() > CONTEXT_BY_HASH.length() ? ContentStore.normalizeDigest(path.substring(CONTEXT_BY_HASH.length() + 1)) : null;
+            if (contentStore == null || digest == null || !contentStore.contains(digest)) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            if (HTTP_HEAD.equalsIgnoreCase(method)) {
+                exchange.getResponseHeaders().set(HEADER_CONTENT_LENGTH, String.valueOf(Files.size(contentStore.objectPath(digest))));
+                exchange.sendResponseHeaders(200, -1);
+            } else if (HTTP_PUT.equalsIgnoreCase(method)) {
+                String name = parseQuery(exchange.getRequestURI().getRawQuery()).get("name");
+                if (name == null || name.isBlank()) {
+                    sendJson(exchange, 400, "{\"error\":\"name is required\"}");
+                    return;
+                }
+                String safe;
+                try {
+                    safe = safeFilename(name);
+                } catch (IllegalArgumentException e) {
+                    sendJson(exchange, 400, "{\"error\":\"invalid name\"}");
+                    return;
+                }
+                contentStore.link(safe, digest);
+                digestStore.put(layout.resolve(safe), digest);
+                index.refresh(safe, digest);
+                log.info("Saved: {} via existing content {}", safe, digest);
+
+                String url = CONTEXT_FILES + URLEncoder.encode(safe, CHARSET_UTF8);
+                exchange.getResponseHeaders().set(HEADER_LOCATION, url);
+                sendJson(exchange, 201, "{\"name\":" + jsonString(safe) + ",\"url\":" + jsonString(url) + "}");
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        }
+    }
+
+    static class FileHandler implements HttpHandler {
+        private final StorageLayout layout;
+        private final StorageIndex index;
+        private final DigestStore digestStore;
+        private final CompressionCache compressionCache;
+        private final HotFileCache hotCache;
+        private final StorageQuota quota;
+
+        FileHandler(StorageLayout layout, StorageIndex index, DigestStore digestStore, CompressionCache compressionCache,
+                    HotFileCache hotCache, StorageQuota quota) {
+            this.layout = layout;
+            this.index = index;
+            this.digestStore = digestStore;
+            this.compressionCache = compressionCache;
+            this.hotCache = hotCache;
+            this.quota = quota;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            TransferEvents.Download event = new TransferEvents.Download();
+            event.begin();
+            try {
+                serve(exchange, event);
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.clientIp = exchange.getRemoteAddress().getAddress().getHostAddress();
+                    event.status = exchange.getResponseCode();
+                    event.commit();
+                }
+            }
+        }
+
+        /**
+         * 处理下载请求，文件名、实际发送的字节数与编码记录到 event。
+         */
+        private void serve(HttpExchange exchange, TransferEvents.Download event) throws IOException {
+            String method = exchange.getRequestMethod();
+            if (!HTTP_GET.equalsIgnoreCase(method) && !HTTP_HEAD.equalsIgnoreCase(method)) {
                 exchange.sendResponseHeaders(405, -1);
                 return;
             }
@@ -657,72 +1324,850 @@ public class FileTransferServer {
                 exchange.sendResponseHeaders(404, -1);
                 return;
             }
-            String name = uri.substring(CONTEXT_FILES.length());
-            name = URLDecoder.decode(name, CHARSET_UTF8);
-            Path target = storage.resolve(name).normalize();
-            if (!target.startsWith(storage) || !Files.exists(target) || Files.isDirectory(target)) {
+            String name = URLDecoder.decode(uri.substring(CONTEXT_FILES.length()), CHARSET_UTF8);
+            Path checked = layout.root().resolve(name).normalize();
+            if (!layout.root().equals(checked.getParent()) || META_DIR.equals(name)) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            Path target = layout.resolve(checked.getFileName().toString());
+            // 先查索引；未命中时再确认一次文件系统，覆盖监听事件尚未到达的窗口
+            StorageIndex.Entry entry = index.get(target.getFileName().toString());
+            if (entry == null) entry = index.refresh(target.getFileName().toString());
+            if (entry == null) {
                 exchange.sendResponseHeaders(404, -1);
                 return;
             }
 
             String clientIP = exchange.getRemoteAddress().getAddress().getHostAddress();
-            long len = Files.size(target);
+            long len = entry.size();
+            event.fileName = entry.name();
             log.info("Download - ClientIP: {}, File: {}, Size: {} bytes", clientIP, name, len);
-            // Content-Type 缓存：避免重复 Files.probeContentType() 调用
-            String contentType = contentTypeCache.computeIfAbsent(target.toString(), p -> {
-                String detected = null;
+            quota.touch(entry.name());
+            HotFileCache.CachedFile cached = hotCache.get(entry);
+            if (cached != null && serveCached(exchange, cached, event, clientIP, name)) return;
+            // Content-Type 记录在索引条目上：条目随文件删除而移除、随大小/修改时间变化而替换，
+            // 因此缓存总量以文件数为界且不会过期失效；首次下载时检测并写回，随元数据日志持久化
+            String contentType = entry.contentType();
+            if (contentType == null) {
                 try {
-                    detected = Files.probeContentType(target);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    contentType = ContentTypeDetector.detect(target, entry.name());
+                } catch (NoSuchFileException e) {
+                    index.refresh(entry.name());
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
                 }
-                return detected != null ? detected : CONTENT_TYPE_OCTET_STREAM;
-            });
+                index.annotate(entry, contentType);
+            }
 
-            exchange.getResponseHeaders().set(HEADER_CONTENT_TYPE, contentType);
-            exchange.getResponseHeaders().set(HEADER_CONTENT_DISPOSITION, CONTENT_DISPOSITION_ATTACHMENT + target.getFileName().toString() + "\"");
-            exchange.sendResponseHeaders(200, len);
+            // 校验器：有上传时记录的 SHA-256 则以其作为强 ETag，否则退化为 mtime + size
+            long lastModified = entry.lastModified();
+            DigestStore.Digest digest = entry.digest() != null
+                    ? new DigestStore.Digest(entry.digest(), len, lastModified)
+                    : digestStore.get(entry.name(), len, lastModified);
+            String etag = digest != null
+                    ? "\"" + digest.sha256() + "\""
+                    : "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(len) + "\"";
+            Headers rspHeaders = exchange.getResponseHeaders();
+
+            // 压缩协商：可压缩文件的变体需单独的 ETag，且响应随 Accept-Encoding 变化
+            boolean compressible = compressionCache.isCompressible(entry.name(), contentType, len);
+            if (compressible) rspHeaders.set(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+            try (FileChannel gzip = compressible ? openCompressed(exchange, entry, target, digest) : null) {
+                if (gzip != null) etag = etag.substring(0, etag.length() - 1) + "-" + CompressionCache.ENCODING_GZIP + "\"";
+
+                rspHeaders.set(HEADER_ACCEPT_RANGES, ACCEPT_RANGES_BYTES);
+                rspHeaders.set(HEADER_ETAG, etag);
+                rspHeaders.set(HEADER_LAST_MODIFIED, formatHttpDate(lastModified));
+                if (digest != null) {
+                    rspHeaders.set(HEADER_REPR_DIGEST, "sha-256=:" + digest.base64() + ":");
+                    rspHeaders.set(HEADER_DIGEST, "SHA-256=" + digest.base64());
+                }
 
-            // 分块下载：手动逐块传输，支持进度日志
-            // 使用 1MB 缓冲区，每 100MB 或 25% 进度打印一次日志
-            long transferred = 0;
-            long lastLogBytes = 0;
-            int lastLogPercent = 0;
-            try (InputStream in = Files.newInputStream(target); OutputStream out = exchange.getResponseBody()) {
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                    transferred += bytesRead;
-
-                    // 每 100MB 打印一次进度，或者每 25% 进度打印一次
-                    long percent = len > 0 ? (transferred * 100 / len) : 0;
-                    if (transferred - lastLogBytes >= PROGRESS_INTERVAL_BYTES || percent >= lastLogPercent + 25) {
-                        double percentDouble = len > 0 ? (transferred * 100.0 / len) : -1;
-                        log.info("Download Progress - ClientIP: {}, File: {}: {}/{}  {}%",
-                                clientIP, name, formatBytes(transferred), formatBytes(len), String.format("%.1f", percentDouble));
-                        lastLogBytes = transferred;
-                        lastLogPercent = (int) percent;
+                // 条件请求：校验器未变化时返回 304，不再传输内容
+                if (notModified(exchange.getRequestHeaders(), etag, lastModified)) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                rspHeaders.set(HEADER_CONTENT_DISPOSITION, CONTENT_DISPOSITION_ATTACHMENT + target.getFileName().toString() + "\"");
+                rspHeaders.set(HEADER_CONTENT_TYPE, contentType);
+
+                if (gzip != null) {
+                    long gzipLen = gzip.size();
+                    rspHeaders.set(HEADER_CONTENT_ENCODING, CompressionCache.ENCODING_GZIP);
+                    if (HTTP_HEAD.equalsIgnoreCase(method)) {
+                        rspHeaders.set(HEADER_CONTENT_LENGTH, String.valueOf(gzipLen));
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
                     }
+                    exchange.sendResponseHeaders(200, gzipLen);
+                    long transferred = sendRange(exchange, gzip, 0, gzipLen, downloadProgress(clientIP, name, gzipLen));
+                    event.bytes = transferred;
+                    event.encoding = CompressionCache.ENCODING_GZIP;
+                    log.info("Download completed - ClientIP: {}, File: {}, {} bytes transferred (gzip, {} bytes original)",
+                            clientIP, name, transferred, len);
+                    return;
                 }
+            }
+
+            // 解析 Range：If-Range 不匹配时按完整内容响应
+            List<HttpRange> ranges = null;
+            String rangeHeader = exchange.getRequestHeaders().getFirst(HEADER_RANGE);
+            if (rangeHeader != null && ifRangeMatches(exchange.getRequestHeaders().getFirst(HEADER_IF_RANGE), etag, lastModified)) {
+                ranges = HttpRange.parse(rangeHeader, len);
+                if (ranges != null && ranges.isEmpty()) {
+                    rspHeaders.set(HEADER_CONTENT_RANGE, "bytes */" + len);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+            }
+
+            if (HTTP_HEAD.equalsIgnoreCase(exchange.getRequestMethod())) {
+                rspHeaders.set(HEADER_CONTENT_LENGTH, String.valueOf(len));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            FileChannel fc;
+            try {
+                fc = FileChannel.open(target, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                // 索引（如启动时回放的日志）中的文件已在外部删除，下一次全量扫描前在此纠正
+                index.refresh(entry.name());
+                rspHeaders.clear();
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            try (fc) {
+                // 访问频次足够的小文件装入热点缓存，响应头取本次已格式化好的值；本次仍从文件发送
+                if (hotCache.admits(entry)) {
+                    try {
+                        hotCache.load(entry, fc, target, new HotFileCache.ResponseHeaders(contentType, compressible, etag,
+                                rspHeaders.getFirst(HEADER_LAST_MODIFIED), rspHeaders.getFirst(HEADER_REPR_DIGEST),
+                                rspHeaders.getFirst(HEADER_DIGEST), rspHeaders.getFirst(HEADER_CONTENT_DISPOSITION)));
+                    } catch (IOException e) {
+                        log.warn("Failed to load {} into the hot file cache: {}", name, e.getMessage());
+                    }
+                }
+                long transferred;
+                if (ranges == null) {
+                    exchange.sendResponseHeaders(200, len);
+                    transferred = sendRange(exchange, fc, 0, len, downloadProgress(clientIP, name, len));
+                } else if (ranges.size() == 1) {
+                    HttpRange range = ranges.getFirst();
+                    log.info("Download Range - ClientIP: {}, File: {}, Range: {}", clientIP, name, range.contentRange(len));
+                    rspHeaders.set(HEADER_CONTENT_RANGE, range.contentRange(len));
+                    exchange.sendResponseHeaders(206, range.length());
+                    transferred = sendRange(exchange, fc, range.start(), range.length(), downloadProgress(clientIP, name, range.length()));
+                } else {
+                    log.info("Download Ranges - ClientIP: {}, File: {}, Ranges: {}", clientIP, name, ranges.size());
+                    transferred = sendMultiRange(exchange, fc, ranges, len, contentType);
+                }
+                event.bytes = transferred;
+                log.info("Download completed - ClientIP: {}, File: {}, {} bytes transferred", clientIP, name, transferred);
+            }
+        }
+
+        /**
+         * 从热点缓存发送：响应头使用缓存中预先格式化的值，内容从内存拷贝到响应流，不访问文件。
+         * 可压缩文件的完整内容请求且客户端接受 gzip（交给压缩变体），或请求多个区间时返回 false，由常规路径处理。
+         *
+         * @return 是否已发送响应
+         */
+        private boolean serveCached(HttpExchange exchange, HotFileCache.CachedFile cached, TransferEvents.Download event,
+                                    String clientIP, String name) throws IOException {
+            Headers requestHeaders = exchange.getRequestHeaders();
+            HotFileCache.ResponseHeaders headers = cached.headers();
+            String rangeHeader = requestHeaders.getFirst(HEADER_RANGE);
+            if (headers.compressible() && rangeHeader == null && CompressionCache.acceptsGzip(requestHeaders.getFirst(HEADER_ACCEPT_ENCODING))) {
+                return false;
+            }
+            long len = cached.size();
+            List<HttpRange> ranges = null;
+            if (rangeHeader != null && ifRangeMatches(requestHeaders.getFirst(HEADER_IF_RANGE), headers.etag(), cached.lastModified())) {
+                ranges = HttpRange.parse(rangeHeader, len);
+                if (ranges != null && ranges.size() > 1) return false;
+            }
+
+            Headers rspHeaders = exchange.getResponseHeaders();
+            if (headers.compressible()) rspHeaders.set(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+            rspHeaders.set(HEADER_ACCEPT_RANGES, ACCEPT_RANGES_BYTES);
+            rspHeaders.set(HEADER_ETAG, headers.etag());
+            rspHeaders.set(HEADER_LAST_MODIFIED, headers.lastModifiedHeader());
+            if (headers.reprDigestHeader() != null) {
+                rspHeaders.set(HEADER_REPR_DIGEST, headers.reprDigestHeader());
+                rspHeaders.set(HEADER_DIGEST, headers.digestHeader());
+            }
+            if (notModified(requestHeaders, headers.etag(), cached.lastModified())) {
+                exchange.sendResponseHeaders(304, -1);
+                return true;
+            }
+            rspHeaders.set(HEADER_CONTENT_DISPOSITION, headers.dispositionHeader());
+            rspHeaders.set(HEADER_CONTENT_TYPE, headers.contentType());
+            if (ranges != null && ranges.isEmpty()) {
+                rspHeaders.set(HEADER_CONTENT_RANGE, "bytes */" + len);
+                exchange.sendResponseHeaders(416, -1);
+                return true;
+            }
+            if (HTTP_HEAD.equalsIgnoreCase(exchange.getRequestMethod())) {
+                rspHeaders.set(HEADER_CONTENT_LENGTH, String.valueOf(len));
+                exchange.sendResponseHeaders(200, -1);
+                return true;
+            }
+
+            long start = 0;
+            long count = len;
+            if (ranges == null) {
+                exchange.sendResponseHeaders(200, len);
+            } else {
+                HttpRange range = ranges.getFirst();
+                log.info("Download Range - ClientIP: {}, File: {}, Range: {}", clientIP, name, range.contentRange(len));
+                rspHeaders.set(HEADER_CONTENT_RANGE, range.contentRange(len));
+                exchange.sendResponseHeaders(206, range.length());
+                start = range.start();
+                count = range.length();
+            }
+            long transferred = 0;
+            try (OutputStream out = exchange.getResponseBody(); BufferPool.Lease lease = buffers.lease()) {
+                byte[] buffer = lease.buffer();
+                while (transferred < count) {
+                    int n = (int) Math.min(buffer.length, count - transferred);
+                    cached.copy(start + transferred, buffer, n);
+                    out.write(buffer, 0, n);
+                    transferred += n;
+                }
+                out.flush();
+            } finally {
+                metrics.bytesSent.add(transferred);
+            }
+            event.bytes = transferred;
+            log.info("Download completed - ClientIP: {}, File: {}, {} bytes transferred (memory)", clientIP, name, transferred);
+            return true;
+        }
+
+        /**
+         * 客户端接受 gzip 且请求完整内容时打开已缓存的压缩变体；变体尚未生成时在后台生成，本次按原样发送。
+         *
+         * @return 压缩变体的通道，不适用或未缓存时返回 null
+         */
+        private FileChannel openCompressed(HttpExchange exchange, StorageIndex.Entry entry, Path target, DigestStore.Digest digest) {
+            Headers requestHeaders = exchange.getRequestHeaders();
+            if (requestHeaders.getFirst(HEADER_RANGE) != null || !CompressionCache.acceptsGzip(requestHeaders.getFirst(HEADER_ACCEPT_ENCODING))) {
+                return null;
+            }
+            String key = CompressionCache.key(entry.name(), entry.size(), entry.lastModified(), digest != null ? digest.sha256() : null);
+            Path variant = compressionCache.lookup(key);
+            if (variant == null) {
+                compressionCache.request(key, target);
+                return null;
+            }
+            try {
+                return FileChannel.open(variant, StandardOpenOption.READ);
+            } catch (IOException e) {
+                return null; // 恰好被淘汰
+            }
+        }
+
+        /**
+         * 写出单个连续区间。
+         * 优先零拷贝（FileChannel.transferTo），响应流不可直达通道时回退到缓冲区拷贝。
+         */
+        private static long sendRange(HttpExchange exchange, FileChannel fc, long position, long count,
+                                      LongConsumer progress) throws IOException {
+            long transferred = 0;
+            try (OutputStream out = exchange.getResponseBody()) {
+                transferred = transferFile(fc, position, count, out, progress);
                 out.flush();
+                return transferred;
+            } finally {
+                metrics.bytesSent.add(transferred);
+            }
+        }
+
+        /**
+         * 以 multipart/byteranges 写出多个区间，响应长度预先计算，无需分块编码。
+         */
+        private static long sendMultiRange(HttpExchange exchange, FileChannel fc, List<HttpRange> ranges,
+                                           long total, String contentType) throws IOException {
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+            byte[][] partHeaders = new byte[ranges.size()][];
+            long contentLength = 0;
+            for (int i = 0; i < ranges.size(); i++) {
+                HttpRange range = ranges.get(i);
+                partHeaders[i] = (CRLF + BOUNDARY_PREFIX + boundary + CRLF
+                        + HEADER_CONTENT_TYPE + ": " + contentType + CRLF
+                        + HEADER_CONTENT_RANGE + ": " + range.contentRange(total) + CRLF + CRLF)
+                        .getBytes(StandardCharsets.ISO_8859_1);
+                contentLength += partHeaders[i].length + range.length();
+            }
+            byte[] closing = (CRLF + BOUNDARY_PREFIX + boundary + BOUNDARY_PREFIX + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+            contentLength += closing.length;
+
+            exchange.getResponseHeaders().set(HEADER_CONTENT_TYPE, CONTENT_TYPE_MULTIPART_BYTERANGES + boundary);
+            exchange.sendResponseHeaders(206, contentLength);
+
+            long transferred = 0;
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < ranges.size(); i++) {
+                    HttpRange range = ranges.get(i);
+                    out.write(partHeaders[i]);
+                    transferred += transferFile(fc, range.start(), range.length(), out, null);
+                }
+                out.write(closing);
+                out.flush();
+            } finally {
+                metrics.bytesSent.add(transferred);
+            }
+            return transferred;
+        }
+
+        /**
+         * 判断条件 GET 是否命中：If-None-Match 存在时按弱比较匹配 ETag（忽略 If-Modified-Since），
+         * 否则比较 If-Modified-Since 与 Last-Modified（精确到秒）。
+         */
+        private static boolean notModified(Headers requestHeaders, String etag, long lastModified) {
+            String ifNoneMatch = requestHeaders.getFirst(HEADER_IF_NONE_MATCH);
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    String t = tag.trim();
+                    if (t.startsWith("W/")) t = t.substring(2);
+                    if (t.equals("*") || t.equals(etag)) return true;
+                }
+                return false;
+            }
+            String ifModifiedSince = requestHeaders.getFirst(HEADER_IF_MODIFIED_SINCE);
+            if (ifModifiedSince == null) return false;
+            try {
+                return lastModified / 1000 <= ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+
+        /**
+         * 判断 If-Range 条件是否成立：可以是强 ETag，也可以是 HTTP-date（需与 Last-Modified 精确匹配）。
+         */
+        private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+            if (ifRange == null) return true;
+            String v = ifRange.trim();
+            if (v.startsWith("\"")) return v.equals(etag);
+            if (v.startsWith("W/")) return false; // If-Range 只接受强校验器
+            try {
+                return ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond() == lastModified / 1000;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+
+        /**
+         * 下载进度日志：每 100MB 或 25% 进度打印一次。
+         */
+        private static LongConsumer downloadProgress(String clientIP, String name, long len) {
+            long[] lastLog = new long[2]; // [0]: 上次打印时的字节数, [1]: 上次打印时的百分比
+            return sent -> {
+                long percent = len > 0 ? (sent * 100 / len) : 0;
+                if (sent - lastLog[0] >= PROGRESS_INTERVAL_BYTES || percent >= lastLog[1] + 25) {
+                    double percentDouble = len > 0 ? (sent * 100.0 / len) : -1;
+                    log.info("Download Progress - ClientIP: {}, File: {}: {}/{}  {}%",
+                            clientIP, name, formatBytes(sent), formatBytes(len), String.format("%.1f", percentDouble));
+                    lastLog[0] = sent;
+                    lastLog[1] = percent;
+                }
+            };
+        }
+    }
+
+    /**
+     * 打包下载：将多个文件即时打包为 ZIP 流式写出，不生成临时文件。
+     * <pre>
+     * GET  /archive?name=a.txt&amp;name=b.csv   按文件名选择（可重复）
+     * GET  /archive?glob=*.csv                 按 glob 选择（可重复，与 name 取并集）
+     * GET  /archive                            整个存储目录
+     * POST /archive                            application/x-www-form-urlencoded，参数同上，用于 URL 放不下的大量文件名
+     * </pre>
+     * 所选文件名不存在时返回 404 并列出缺失的名称；响应开始后才消失的文件被跳过。
+     */
+    static class ArchiveHandler implements HttpHandler {
+        private final StorageLayout layout;
+        private final StorageIndex index;
+        private final StorageQuota quota;
+
+        ArchiveHandler(StorageLayout layout, StorageIndex index, StorageQuota quota) {
+            this.layout = layout;
+            this.index = index;
+            this.quota = quota;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            Set<String> names = new LinkedHashSet<>();
+            List<String> globs = new ArrayList<>();
+            if (HTTP_GET.equalsIgnoreCase(method)) {
+                collectParams(exchange.getRequestURI().getRawQuery(), names, globs);
+            } else if (HTTP_POST.equalsIgnoreCase(method)) {
+                String contentType = exchange.getRequestHeaders().getFirst(HEADER_CONTENT_TYPE);
+                if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith(CONTENT_TYPE_FORM)) {
+                    exchange.sendResponseHeaders(415, -1);
+                    return;
+                }
+                byte[] body = exchange.getRequestBody().readNBytes(ARCHIVE_MAX_FORM_BYTES + 1);
+                if (body.length > ARCHIVE_MAX_FORM_BYTES) {
+                    exchange.sendResponseHeaders(413, -1);
+                    return;
+                }
+                collectParams(exchange.getRequestURI().getRawQuery(), names, globs);
+                collectParams(new String(body, StandardCharsets.ISO_8859_1), names, globs);
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            List<String> missing = new ArrayList<>();
+            List<StorageIndex.Entry> selected;
+            try {
+                selected = select(names, globs, missing);
+            } catch (PatternSyntaxException e) {
+                sendJson(exchange, 400, "{\"error\":" + jsonString("invalid glob: " + e.getPattern()) + "}");
+                return;
+            }
+            if (!missing.isEmpty()) {
+                StringBuilder json = new StringBuilder("{\"error\":\"not found\",\"missing\":[");
+                for (int i = 0; i < missing.size(); i++) json.append(i > 0 ? "," : "").append(jsonString(missing.get(i)));
+                sendJson(exchange, 404, json.append("]}").toString());
+                return;
+            }
+            if (selected.isEmpty()) {
+                sendJson(exchange, 404, "{\"error\":\"no files matched\"}");
+                return;
+            }
+
+            String clientIP = exchange.getRemoteAddress().getAddress().getHostAddress();
+            String archiveName = "files-" + DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").format(LocalDateTime.now()) + ".zip";
+            log.info("Archive - ClientIP: {}, Files: {}, Names: {}, Globs: {}", clientIP, selected.size(), names.size(), globs);
+            Headers rspHeaders = exchange.getResponseHeaders();
+            rspHeaders.set(HEADER_CONTENT_TYPE, CONTENT_TYPE_ZIP);
+            rspHeaders.set(HEADER_CONTENT_DISPOSITION, CONTENT_DISPOSITION_ATTACHMENT + archiveName + "\"");
+            exchange.sendResponseHeaders(200, 0);
+
+            long start = System.currentTimeMillis();
+            int files = 0;
+            long original = 0;
+            ZipStreamWriter zip = null;
+            try (OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), ARCHIVE_BUFFER_SIZE)) {
+                zip = new ZipStreamWriter(out, ARCHIVE_DEFLATE_LEVEL);
+                for (StorageIndex.Entry entry : selected) {
+                    InputStream in;
+                    try {
+                        in = Files.newInputStream(layout.resolve(entry.name()));
+                    } catch (NoSuchFileException e) {
+                        log.warn("Archive - skipping {}: deleted while archiving", entry.name());
+                        continue;
+                    }
+                    try (in) {
+                        original += zip.addEntry(entry.name(), in, entry.size(), entry.lastModified(), ZipStreamWriter.shouldStore(entry.name()));
+                    }
+                    quota.touch(entry.name());
+                    files++;
+                }
+                zip.finish();
+            } finally {
+                if (zip != null) metrics.bytesSent.add(zip.bytesWritten());
+            }
+            log.info("Archive completed - ClientIP: {}, {} files, {} bytes -> {} bytes in {} ms",
+                    clientIP, files, original, zip.bytesWritten(), System.currentTimeMillis() - start);
+        }
+
+        /**
+         * 按文件名与 glob 选出条目，按名称排序；未给出任何条件时选中全部文件。
+         *
+         * @param missing 收集不存在的文件名
+         */
+        private List<StorageIndex.Entry> select(Set<String> names, List<String> globs, List<String> missing) {
+            List<PathMatcher> matchers = new ArrayList<>(globs.size());
+            for (String glob : globs) matchers.add(layout.root().getFileSystem().getPathMatcher("glob:" + glob));
+            Map<String, StorageIndex.Entry> selected = new TreeMap<>();
+            for (String name : names) {
+                StorageIndex.Entry entry = index.get(name);
+                if (entry == null && !name.contains("/") && !name.contains("\\")) {
+                    try {
+                        entry = index.refresh(name);
+                    } catch (InvalidPathException e) {
+                        entry = null; // 文件系统编码无法表示的名称不可能存在
+                    }
+                }
+                if (entry == null) missing.add(name);
+                else selected.put(name, entry);
+            }
+            if (!matchers.isEmpty() || names.isEmpty()) {
+                for (StorageIndex.Entry entry : index.list(StorageIndex.Order.NAME, false)) {
+                    if (matchers.isEmpty() ? names.isEmpty() : matchers.stream().anyMatch(m -> m.matches(Path.of(entry.name())))) {
+                        selected.putIfAbsent(entry.name(), entry);
+                    }
+                }
+            }
+            return new ArrayList<>(selected.values());
+        }
+
+        private static void collectParams(String raw, Set<String> names, List<String> globs) {
+            if (raw == null || raw.isEmpty()) return;
+            for (String pair : raw.split("&")) {
+                String[] keyValue = pair.split("=", 2);
+                if (keyValue.length < 2 || keyValue[1].isEmpty()) continue;
+                String value = URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8);
+                switch (URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8)) {
+                    case "name" -> names.add(value);
+                    case "glob" -> globs.add(value);
+                    default -> {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 并发传输限流：包装上传/下载处理器，用信号量限制同时进行的传输数量。
+     * 列表页等轻量请求不经过此处理器，始终可以及时响应。
+     */
+    static class TransferLimitHandler implements HttpHandler {
+        private final HttpHandler delegate;
+        private final Semaphore permits;
+
+        TransferLimitHandler(HttpHandler delegate, Semaphore permits) {
+            this.delegate = delegate;
+            this.permits = permits;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(TRANSFER_ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (!acquired) {
+                log.warn("Too many concurrent transfers, rejecting {} {}", exchange.getRequestMethod(), exchange.getRequestURI());
+                exchange.getResponseHeaders().set(HEADER_RETRY_AFTER, String.valueOf(TRANSFER_ACQUIRE_TIMEOUT_SECONDS));
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            try {
+                delegate.handle(exchange);
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * 指标采集包装：记录请求耗时与响应状态，传输类处理器同时计入活跃传输数。
+     */
+    static class InstrumentedHandler implements HttpHandler {
+        private final HttpHandler delegate;
+        private final TransferMetrics.RequestStats stats;
+        private final boolean transfer;
+
+        InstrumentedHandler(String name, HttpHandler delegate, boolean transfer) {
+            this.delegate = delegate;
+            this.stats = metrics.handler(name);
+            this.transfer = transfer;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            if (transfer) metrics.activeTransfers.increment();
+            int status = -1;
+            try {
+                delegate.handle(exchange);
+                status = exchange.getResponseCode();
+            } finally {
+                if (transfer) metrics.activeTransfers.decrement();
+                stats.record(System.nanoTime() - start, status);
+            }
+        }
+    }
+
+    /**
+     * 上传进度推送：GET /progress/{id}，以 Server-Sent Events 持续发送该上传 ID 的最新进度，上传结束后关闭。
+     * <p>
+     * 每条事件为 {"file":..,"bytes":..,"total":..,"done":..,"error":..}；订阅者只读取通道中的最新值，
+     * 写出较慢时中间进度被合并丢弃，不会影响上传线程。
+     */
+    static class ProgressHandler implements HttpHandler {
+        private final ProgressBus bus;
+        private final Semaphore subscribers = new Semaphore(PROGRESS_MAX_SUBSCRIBERS);
+
+        ProgressHandler(ProgressBus bus) {
+            this.bus = bus;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!HTTP_GET.equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            ProgressBus.Channel channel = bus.channel(exchange.getRequestURI().getPath().substring(CONTEXT_PROGRESS.length()));
+            if (channel == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (!subscribers.tryAcquire()) {
+                exchange.getResponseHeaders().set(HEADER_RETRY_AFTER, String.valueOf(PROGRESS_HEARTBEAT_MILLIS / 1000));
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            try {
+                Headers rspHeaders = exchange.getResponseHeaders();
+                rspHeaders.set(HEADER_CONTENT_TYPE, CONTENT_TYPE_EVENT_STREAM);
+                rspHeaders.set(HEADER_CACHE_CONTROL, "no-cache");
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    stream(channel, os);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                subscribers.release();
             }
+        }
 
-            log.info("Download completed - ClientIP: {}, File: {}, {} bytes transferred", clientIP, name, transferred);
+        private static void stream(ProgressBus.Channel channel, OutputStream os) throws IOException, InterruptedException {
+            long seen = 0;
+            while (true) {
+                ProgressBus.Progress p = channel.await(seen, PROGRESS_HEARTBEAT_MILLIS);
+                if (p == null) {
+                    if (channel.idleMillis() > ProgressBus.IDLE_EXPIRE_MILLIS) return; // 上传始终未开始或已中断
+                    os.write(": keep-alive\n\n".getBytes(StandardCharsets.UTF_8));
+                    os.flush();
+                    continue;
+                }
+                seen = p.seq();
+                String data = "{\"file\":" + jsonString(p.file()) + ",\"bytes\":" + p.bytes() + ",\"total\":" + p.total()
+                        + ",\"done\":" + p.done() + ",\"error\":" + jsonString(p.error()) + "}";
+                os.write(("event: progress\nid: " + p.seq() + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                if (p.done()) return;
+            }
         }
     }
 
+    /**
+     * Prometheus 文本格式的指标：GET /metrics。
+     */
+    static class MetricsHandler implements HttpHandler {
+        private final StorageIndex index;
+
+        MetricsHandler(StorageIndex index) {
+            this.index = index;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!HTTP_GET.equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.render(index.size(), index.totalBytes()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set(HEADER_CONTENT_TYPE, CONTENT_TYPE_PROMETHEUS);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    /**
+     * 带宽整形包装：在委托处理期间将请求体与响应体替换为限速流，按客户端 IP 归并到同一个令牌桶。
+     */
+    static class BandwidthLimitHandler implements HttpHandler {
+        private final HttpHandler delegate;
+        private final BandwidthLimiter limiter;
+
+        BandwidthLimitHandler(HttpHandler delegate, BandwidthLimiter limiter) {
+            this.delegate = delegate;
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try (BandwidthLimiter.Transfer transfer = limiter.open(exchange.getRemoteAddress().getAddress().getHostAddress())) {
+                exchange.setStreams(transfer.wrap(exchange.getRequestBody()), transfer.wrap(exchange.getResponseBody()));
+                delegate.handle(exchange);
+            }
+        }
+    }
+
+    /**
+     * 存储配额状态与文件固定，仅接受本机请求：
+     * - GET /admin/pins：返回配额、已用、已预留字节数与固定列表；
+     * - PUT /admin/pins/{name}：固定文件，不参与淘汰（文件可以尚不存在）；
+     * - DELETE /admin/pins/{name}：取消固定。
+     */
+    static class PinsHandler implements HttpHandler {
+        private final StorageIndex index;
+        private final StorageQuota quota;
+
+        PinsHandler(StorageIndex index, StorageQuota quota) {
+            this.index = index;
+            this.quota = quota;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                exchange.sendResponseHeaders(403, -1);
+                exchange.close();
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            String name = path.length() > CONTEXT_ADMIN_PINS.length() + 1 ? path.substring(CONTEXT_ADMIN_PINS.length() + 1) : "";
+            if (name.isEmpty()) {
+                if (!HTTP_GET.equalsIgnoreCase(method)) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                StringBuilder json = new StringBuilder(256);
+                json.append("{\"maxBytes\":").append(quota.maxBytes())
+                        .append(",\"usedBytes\":").append(index.totalBytes())
+                        .append(",\"reservedBytes\":").append(quota.reservedBytes())
+                        .append(",\"pinned\":[");
+                List<String> pinned = quota.pinned();
+                for (int i = 0; i < pinned.size(); i++) json.append(i > 0 ? "," : "").append(jsonString(pinned.get(i)));
+                sendJson(exchange, 200, json.append("]}").toString());
+                return;
+            }
+            String safe;
+            try {
+                safe = safeFilename(name);
+            } catch (IllegalArgumentException e) {
+                sendJson(exchange, 400, "{\"error\":\"invalid name\"}");
+                return;
+            }
+            if (HTTP_PUT.equalsIgnoreCase(method)) {
+                quota.setPinned(safe, true);
+            } else if (HTTP_DELETE.equalsIgnoreCase(method)) {
+                quota.setPinned(safe, false);
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            sendJson(exchange, 200, "{\"name\":" + jsonString(safe) + ",\"pinned\":" + quota.isPinned(safe) + "}");
+        }
+    }
+
+    /**
+     * 带宽上限查询与调整，仅接受本机请求：
+     * - GET /admin/limits：返回当前上限与活跃传输数；
+     * - PUT/POST /admin/limits?global=&perClient=&perTransfer=：调整指定级别（字节/秒，0 为不限速），未给出的保持不变。
+     */
+    static class LimitsHandler implements HttpHandler {
+        private final BandwidthLimiter limiter;
+
+        LimitsHandler(BandwidthLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                exchange.sendResponseHeaders(403, -1);
+                exchange.close();
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            if (HTTP_PUT.equalsIgnoreCase(method) || HTTP_POST.equalsIgnoreCase(method)) {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                try {
+                    limiter.setLimits(rate(query.get("global")), rate(query.get("perClient")), rate(query.get("perTransfer")));
+                } catch (IllegalArgumentException e) {
+                    sendJson(exchange, 400, "{\"error\":" + jsonString(e.getMessage()) + "}");
+                    return;
+                }
+            } else if (!HTTP_GET.equalsIgnoreCase(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            sendJson(exchange, 200, "{\"global\":" + limiter.globalRate()
+                    + ",\"perClient\":" + limiter.perClientRate()
+                    + ",\"perTransfer\":" + limiter.perTransferRate()
+                    + ",\"activeTransfers\":" + limiter.activeTransfers()
+                    + ",\"activeClients\":" + limiter.activeClients() + "}");
+        }
+
+        private static long rate(String value) {
+            if (value == null || value.isEmpty()) return BandwidthLimiter.KEEP;
+            try {
+                long rate = Long.parseLong(value);
+                if (rate >= 0) return rate;
+            } catch (NumberFormatException ignored) {
+            }
+            throw new IllegalArgumentException("Invalid rate: " + value);
+        }
+    }
+
+    /**
+     * 根据配置创建请求执行器：默认每个请求一个虚拟线程，可选固定大小的平台线程池。
+     */
+    private static ExecutorService createExecutor() {
+        if ("platform".equalsIgnoreCase(EXECUTOR_MODE)) {
+            return Executors.newFixedThreadPool(PLATFORM_THREADS, Thread.ofPlatform().name("transfer-", 0).factory());
+        }
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("transfer-vt-", 0).factory());
+    }
+
     static void main() throws Exception {
         int port = DEFAULT_PORT;
         String dir = resolveDefaultStorage();
         Path storage = Paths.get(dir).toAbsolutePath();
-        Files.createDirectories(storage);
-
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext(CONTEXT_ROOT, new RootHandler(storage));
-        server.createContext(CONTEXT_UPLOAD, new UploadHandler(storage));
-        server.createContext(CONTEXT_FILES.substring(0, CONTEXT_FILES.length() - 1), new FileHandler(storage));
-        server.setExecutor(null);
+        Files.createDirectories(storage.resolve(META_DIR));
+
+        StorageLayout layout = new StorageLayout(storage, storage.resolve(META_DIR), StorageLayout.Kind.of(STORAGE_LAYOUT));
+        layout.migrate();
+        DigestStore digestStore = new DigestStore(storage.resolve(META_DIR).resolve(DIGESTS_DIR));
+        FileSync fileSync = new FileSync(storage.resolve(META_DIR).resolve(INCOMING_DIR), FileSync.Policy.of(FSYNC_POLICY), PREALLOCATE);
+        ContentStore contentStore = "dedup".equalsIgnoreCase(STORAGE_MODE) ? new ContentStore(layout, storage.resolve(META_DIR), fileSync) : null;
+        CompressionCache compressionCache = new CompressionCache(storage.resolve(META_DIR).resolve(COMPRESSED_DIR), COMPRESS_CACHE_BYTES, COMPRESS_MIN_BYTES);
+        HotFileCache hotCache = new HotFileCache(HOT_CACHE_BYTES, HOT_CACHE_MAX_FILE_BYTES, metrics);
+        MetadataJournal journal = JOURNAL_ENABLED
+                ? new MetadataJournal(storage.resolve(META_DIR).resolve(JOURNAL_FILE), fileSync.policy() != FileSync.Policy.NONE) : null;
+        long indexStart = System.nanoTime();
+        StorageIndex index = new StorageIndex(layout, META_DIR, TimeUnit.SECONDS.toMillis(INDEX_RESCAN_SECONDS), journal);
+        long indexMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - indexStart);
+        index.start();
+        if (journal != null) journal.start();
+        StorageQuota quota = new StorageQuota(layout, storage.resolve(META_DIR), index, contentStore, metrics, QUOTA_BYTES,
+                TimeUnit.HOURS.toMillis(QUOTA_TTL_HOURS), StorageQuota.Order.of(QUOTA_ORDER), TimeUnit.SECONDS.toMillis(QUOTA_SWEEP_SECONDS),
+                QUOTA_RESERVE_WAIT_MILLIS);
+        quota.start();
+
+        HttpServer server = NioHttpServer.createServer(new InetSocketAddress(port), 0);
+        server.createContext(CONTEXT_ROOT, new InstrumentedHandler("listing", new RootHandler(index), false));
+        server.createContext(CONTEXT_API_FILES, new InstrumentedHandler("api_files", new FileListHandler(index), false));
+        Semaphore transferPermits = new Semaphore(MAX_CONCURRENT_TRANSFERS, true);
+        ProgressBus progressBus = new ProgressBus(PROGRESS_MAX_CHANNELS);
+        BandwidthLimiter bandwidth = new BandwidthLimiter(RATE_GLOBAL, RATE_PER_CLIENT, RATE_PER_TRANSFER);
+        server.createContext(CONTEXT_UPLOAD, new InstrumentedHandler("upload",
+                new TransferLimitHandler(new BandwidthLimitHandler(new UploadHandler(layout, index, contentStore, fileSync, digestStore, progressBus, quota), bandwidth), transferPermits), true));
+        server.createContext(CONTEXT_FILES.substring(0, CONTEXT_FILES.length() - 1), new InstrumentedHandler("download",
+                new TransferLimitHandler(new BandwidthLimitHandler(new FileHandler(layout, index, digestStore, compressionCache, hotCache, quota), bandwidth), transferPermits), true));
+        server.createContext(CONTEXT_UPLOADS, new InstrumentedHandler("chunked_upload",
+                new TransferLimitHandler(new BandwidthLimitHandler(new ChunkedUploadHandler(layout, index, contentStore, fileSync, digestStore, quota), bandwidth), transferPermits), true));
+        server.createContext(CONTEXT_ADMIN_LIMITS, new LimitsHandler(bandwidth));
+        server.createContext(CONTEXT_ADMIN_PINS, new PinsHandler(index, quota));
+        server.createContext(CONTEXT_BY_HASH, new InstrumentedHandler("by_hash", new ByHashHandler(layout, contentStore, index, digestStore), false));
+        server.createContext(CONTEXT_METRICS, new MetricsHandler(index));
+        server.createContext(CONTEXT_PROGRESS.substring(0, CONTEXT_PROGRESS.length() - 1), new ProgressHandler(progressBus));
+        server.createContext(CONTEXT_ARCHIVE, new InstrumentedHandler("archive",
+                new TransferLimitHandler(new BandwidthLimitHandler(new ArchiveHandler(layout, index, quota), bandwidth), transferPermits), true));
+        ExecutorService executor = createExecutor();
+        server.setExecutor(executor);
 
         // 获取本机 IP 地址用于显示
         String localIP = java.net.InetAddress.getLocalHost().getHostAddress();
@@ -730,10 +2175,37 @@ public class FileTransferServer {
 
         log.info("==================== FileTransferServer ====================");
         log.info("Server URL: {}", serverUrl);
-        log.info("Storage directory: {}", storage);
+        log.info("Storage directory: {} ({} files indexed in {} ms from {})", storage, index.size(), indexMillis,
+                journal != null && journal.existed() ? "metadata journal" : "directory scan");
+        log.info("Storage mode: {}, layout: {}", contentStore != null ? "dedup (sha-256)" : "plain", layout.kind().name().toLowerCase());
+        log.info("Storage quota: {}, ttl: {}, eviction order: {}", QUOTA_BYTES > 0 ? formatBytes(QUOTA_BYTES) : "unlimited",
+                QUOTA_TTL_HOURS > 0 ? QUOTA_TTL_HOURS + "h" : "none", QUOTA_ORDER);
+        log.info("Upload durability: fsync={}, preallocate={}", fileSync.policy().name().toLowerCase(),
+                !PREALLOCATE ? "off" : Preallocator.available() ? "fallocate"
+                        : Preallocator.nativeAccessEnabled() ? "unavailable" : "unavailable (start with --enable-native-access=ALL-UNNAMED)");
+        log.info("HTTP engine: {}", server instanceof NioHttpServer ? "nio" : "jdk");
+        log.info("Executor: {}, max concurrent transfers: {}", EXECUTOR_MODE, MAX_CONCURRENT_TRANSFERS);
+        log.info("Transfer buffers: {} x {}", buffers.capacity(), formatBytes(buffers.bufferSize()));
+        log.info("Hot file cache: {}", hotCache.enabled()
+                ? formatBytes(hotCache.maxBytes()) + ", files up to " + formatBytes(hotCache.maxFileBytes()) : "disabled");
+        log.info("Bandwidth limits (B/s, 0 = unlimited): global={}, perClient={}, perTransfer={}", RATE_GLOBAL, RATE_PER_CLIENT, RATE_PER_TRANSFER);
+        log.info("Multipart boundary search: {}", MultipartScanner.BytePattern.VECTOR_SEARCH ? "vector" : "scalar");
         log.info("==========================================================");
 
         server.start();
+
+        // 优雅停止
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            log.info("Stopping FileTransferServer...");
+            server.stop(1);
+            executor.shutdown();
+            compressionCache.close();
+            try {
+                index.close();
+                if (journal != null) journal.close();
+            } catch (IOException ignored) {
+            }
+        }));
     }
 
 }
@@ -0,0 +1,261 @@
+package com.linearizability.http;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 热点小文件内存缓存
+ * <p>
+ * 反复下载的小文件（安装包、配置文件等）整份保存在堆外内存中，命中时直接从内存写出，不再打开和读取文件：
+ * - 只缓存不超过 maxFileBytes 的文件，总字节数不超过 maxBytes；
+ * - 准入采用 TinyLFU 方式：用计数草图（count-min sketch）估算每个文件名的近期访问频次，
+ *   至少访问过 {@link #ADMIT_FREQUENCY} 次才缓存；空间不足时只有频次高于全部待淘汰条目（按 LRU 顺序选取）才替换，
+ *   偶发的一次性下载不会挤掉热点文件；计数定期减半，使频次反映近期热度；
+ * - 条目记录缓存时的大小与修改时间，与 {@link StorageIndex} 中的条目不一致即失效；装入后再读一次文件属性，
+ *   读取期间被改写的内容不会进入缓存；
+ * - 响应头（ETag、Last-Modified、摘要、Content-Disposition 等）在装入时格式化好，命中时直接设置。
+ * <p>
+ * 内容存放在 {@link Arena#ofAuto()} 分配的内存段中，不占用 Java 堆，淘汰后由 GC 回收；
+ * 仍在发送中的响应持有内存段的引用，淘汰不影响正在进行的下载。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+final class HotFileCache {
+
+    /**
+     * 预先格式化的响应头
+     *
+     * @param contentType        Content-Type
+     * @param compressible       是否可能有压缩变体（需设置 Vary）
+     * @param etag               ETag
+     * @param lastModifiedHeader Last-Modified
+     * @param reprDigestHeader   Repr-Digest，无摘要时为 null
+     * @param digestHeader       Digest，无摘要时为 null
+     * @param dispositionHeader  Content-Disposition
+     */
+    record ResponseHeaders(String contentType, boolean compressible, String etag, String lastModifiedHeader,
+                           String reprDigestHeader, String digestHeader, String dispositionHeader) {
+    }
+
+    /**
+     * 缓存的文件
+     *
+     * @param name         文件名
+     * @param size         缓存时的文件大小
+     * @param lastModified 缓存时的修改时间（毫秒）
+     * @param content      文件内容（堆外）
+     * @param headers      响应头
+     */
+    record CachedFile(String name, long size, long lastModified, MemorySegment content, ResponseHeaders headers) {
+
+        boolean matches(StorageIndex.Entry entry) {
+            return size == entry.size() && lastModified == entry.lastModified();
+        }
+
+        /**
+         * 将 [offset, offset + length) 区间拷贝到 dst。
+         */
+        void copy(long offset, byte[] dst, int length) {
+            MemorySegment.copy(content, ValueLayout.JAVA_BYTE, offset, dst, 0, length);
+        }
+    }
+
+    static final int ADMIT_FREQUENCY = 2; // 一次性访问不缓存
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final TransferMetrics metrics;
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<String, CachedFile> entries = new LinkedHashMap<>(16, 0.75f, true); // LRU 顺序
+    private long totalBytes;
+
+    /**
+     * @param maxBytes     缓存总字节数上限，0 表示不启用
+     * @param maxFileBytes 可缓存的单个文件大小上限
+     * @param metrics      命中、未命中、装入与淘汰计数
+     */
+    HotFileCache(long maxBytes, long maxFileBytes, TransferMetrics metrics) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+        this.metrics = metrics;
+        this.sketch = maxBytes > 0 ? new FrequencySketch(maxBytes) : null;
+    }
+
+    boolean enabled() {
+        return maxBytes > 0;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    long maxFileBytes() {
+        return maxFileBytes;
+    }
+
+    /**
+     * 记录一次访问并查找缓存；缓存的版本与索引条目不一致时移除并视为未命中。
+     *
+     * @return 缓存的文件，不可缓存或未命中时返回 null
+     */
+    CachedFile get(StorageIndex.Entry entry) {
+        if (!enabled() || entry.size() > maxFileBytes) return null;
+        sketch.increment(entry.name());
+        synchronized (entries) {
+            CachedFile cached = entries.get(entry.name());
+            if (cached != null) {
+                if (cached.matches(entry)) {
+                    metrics.hotCacheHits.increment();
+                    return cached;
+                }
+                remove(cached);
+            }
+        }
+        metrics.hotCacheMisses.increment();
+        return null;
+    }
+
+    /**
+     * 该文件当前是否会被准入，用于在读取文件前判断，避免为不会缓存的文件分配内存。
+     */
+    boolean admits(StorageIndex.Entry entry) {
+        if (!enabled() || entry.size() > maxFileBytes) return false;
+        int frequency = sketch.frequency(entry.name());
+        if (frequency < ADMIT_FREQUENCY) return false;
+        synchronized (entries) {
+            CachedFile same = entries.get(entry.name());
+            if (same != null && same.matches(entry)) return false; // 已缓存（如多区间请求回落到常规路径）
+            return victims(entry.name(), entry.size(), frequency) != null;
+        }
+    }
+
+    /**
+     * 读取整个文件装入缓存。读取期间文件被改写（大小或修改时间与索引条目不一致）时放弃。
+     *
+     * @param entry   索引条目
+     * @param fc      已打开的文件通道
+     * @param file    文件路径（用于读取后校验修改时间）
+     * @param headers 预先格式化的响应头
+     * @return 装入的缓存条目；被改写或未被准入时返回 null
+     */
+    CachedFile load(StorageIndex.Entry entry, FileChannel fc, Path file, ResponseHeaders headers) throws IOException {
+        long size = entry.size();
+        MemorySegment content = Arena.ofAuto().allocate(size);
+        ByteBuffer bb = content.asByteBuffer();
+        while (bb.hasRemaining()) {
+            if (fc.read(bb, bb.position()) < 0) return null; // 文件被截断
+        }
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attrs.size() != size || attrs.lastModifiedTime().toMillis() != entry.lastModified()) return null;
+
+        CachedFile cached = new CachedFile(entry.name(), size, entry.lastModified(), content, headers);
+        int frequency = sketch.frequency(entry.name());
+        synchronized (entries) {
+            List<CachedFile> victims = victims(entry.name(), size, frequency);
+            if (victims == null) return null;
+            for (CachedFile victim : victims) {
+                remove(victim);
+                metrics.hotCacheEvictions.increment();
+            }
+            CachedFile old = entries.put(entry.name(), cached);
+            if (old != null) adjust(-old.size());
+            adjust(size);
+        }
+        metrics.hotCacheAdmissions.increment();
+        return cached;
+    }
+
+    /**
+     * 为新条目腾出空间需淘汰的条目（同名旧版本不计入，由替换释放）。
+     *
+     * @return 待淘汰条目（可能为空列表）；任一条目的频次不低于新条目时返回 null，表示不准入
+     */
+    private List<CachedFile> victims(String name, long size, int frequency) {
+        CachedFile same = entries.get(name);
+        long needed = totalBytes - (same != null ? same.size() : 0) + size - maxBytes;
+        List<CachedFile> victims = new ArrayList<>();
+        Iterator<CachedFile> it = entries.values().iterator();
+        while (needed > 0 && it.hasNext()) {
+            CachedFile victim = it.next();
+            if (victim == same) continue;
+            if (sketch.frequency(victim.name()) >= frequency) return null;
+            victims.add(victim);
+            needed -= victim.size();
+        }
+        return needed > 0 ? null : victims;
+    }
+
+    private void remove(CachedFile cached) {
+        if (entries.remove(cached.name(), cached)) adjust(-cached.size());
+    }
+
+    private void adjust(long delta) {
+        totalBytes += delta;
+        metrics.hotCacheBytes.add(delta);
+    }
+
+    /**
+     * 访问频次草图：4 行共享一个计数数组的 count-min sketch，每个计数器 1 字节、上限 15，
+     * 累计增加次数达到计数器数量的 10 倍时全部减半。
+     */
+    private static final class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        /**
+         * 计数器数量按缓存容量估算（每 256 字节一个，4096 到 16M 之间，取 2 的幂）。
+         */
+        FrequencySketch(long maxBytes) {
+            int size = Integer.highestOneBit(Math.clamp(maxBytes / 256, 1 << 12, 1 << 24));
+            this.counters = new byte[size];
+            this.mask = size - 1;
+            this.sampleSize = size * 10;
+        }
+
+        synchronized void increment(String name) {
+            int h = name.hashCode();
+            boolean added = false;
+            for (long seed : SEEDS) {
+                int i = index(h, seed);
+                if (counters[i] < MAX_COUNT) {
+                    counters[i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) reset();
+        }
+
+        synchronized int frequency(String name) {
+            int h = name.hashCode();
+            int min = MAX_COUNT;
+            for (long seed : SEEDS) min = Math.min(min, counters[index(h, seed)]);
+            return min;
+        }
+
+        private int index(int h, long seed) {
+            return (int) (((h ^ seed) * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+        }
+
+        private void reset() {
+            for (int i = 0; i < counters.length; i++) counters[i] >>= 1;
+            additions /= 2;
+        }
+    }
+}
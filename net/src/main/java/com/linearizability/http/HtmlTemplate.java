@@ -0,0 +1,94 @@
+package com.linearizability.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 预编译的 HTML 模板
+ * <p>
+ * 加载时按 {{NAME}} 占位符切分为静态片段（已编码为 UTF-8 字节）与占位符序号，
+ * 渲染时依次写出片段并回调占位符内容，直接写入输出流，不拼接整页字符串。
+ * 未声明的占位符按原文保留。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+final class HtmlTemplate {
+
+    /**
+     * 占位符内容回调
+     */
+    @FunctionalInterface
+    interface Slot {
+        /**
+         * 写出第 index 个占位符（按 {@link #compile} 传入的顺序）的内容。
+         */
+        void write(int index, OutputStream out) throws IOException;
+    }
+
+    private static final String OPEN = "{{";
+    private static final String CLOSE = "}}";
+
+    private final byte[][] literals; // literals.length == slots.length + 1
+    private final int[] slots;
+
+    private HtmlTemplate(byte[][] literals, int[] slots) {
+        this.literals = literals;
+        this.slots = slots;
+    }
+
+    /**
+     * 编译模板。
+     *
+     * @param text         模板原文
+     * @param placeholders 占位符名（不含花括号），其顺序即渲染时的序号
+     */
+    static HtmlTemplate compile(String text, String... placeholders) {
+        List<byte[]> literals = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int pos = 0;
+        while (pos < text.length()) {
+            int open = text.indexOf(OPEN, pos);
+            int close = open < 0 ? -1 : text.indexOf(CLOSE, open + OPEN.length());
+            if (close < 0) {
+                literal.append(text, pos, text.length());
+                break;
+            }
+            int slot = Arrays.asList(placeholders).indexOf(text.substring(open + OPEN.length(), close));
+            if (slot < 0) {
+                literal.append(text, pos, close + CLOSE.length());
+            } else {
+                literal.append(text, pos, open);
+                literals.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+                literal.setLength(0);
+                slots.add(slot);
+            }
+            pos = close + CLOSE.length();
+        }
+        literals.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+        return new HtmlTemplate(literals.toArray(new byte[0][]), slots.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * 渲染模板，占位符内容由回调写出。
+     */
+    void render(OutputStream out, Slot slot) throws IOException {
+        for (int i = 0; i < slots.length; i++) {
+            out.write(literals[i]);
+            slot.write(slots[i], out);
+        }
+        out.write(literals[slots.length]);
+    }
+
+    /**
+     * 渲染模板，values[i] 对应第 i 个占位符，调用方负责转义。
+     */
+    void render(OutputStream out, String... values) throws IOException {
+        render(out, (index, o) -> o.write(values[index].getBytes(StandardCharsets.UTF_8)));
+    }
+}
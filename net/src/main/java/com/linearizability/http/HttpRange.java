@@ -0,0 +1,98 @@
+package com.linearizability.http;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * HTTP 字节区间（RFC 9110 Range: bytes=...）
+ *
+ * @param start 起始偏移（含）
+ * @param end   结束偏移（含）
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+record HttpRange(long start, long end) {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * 单个请求允许的最大区间数，超出时忽略 Range 头，避免被大量碎片区间拖垮
+     */
+    private static final int MAX_RANGES = 32;
+
+    long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * 生成 Content-Range 响应头的值，例如 "bytes 0-499/1234"
+     */
+    String contentRange(long total) {
+        return "bytes " + start + "-" + end + "/" + total;
+    }
+
+    /**
+     * 解析 Range 请求头。
+     * <p>
+     * 重叠或相邻的区间会按起始位置排序后合并。
+     *
+     * @param header Range 头的值
+     * @param total  资源总长度
+     * @return null 表示 Range 头无法识别、应当忽略并返回完整内容；空列表表示所有区间均不可满足（416）
+     */
+    static List<HttpRange> parse(String header, long total) {
+        if (header == null) return null;
+        String h = header.trim();
+        if (!h.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) return null;
+
+        String[] specs = h.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) return null;
+
+        List<HttpRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            String s = spec.trim();
+            int dash = s.indexOf('-');
+            if (dash < 0) return null;
+            String first = s.substring(0, dash).trim();
+            String last = s.substring(dash + 1).trim();
+            try {
+                if (first.isEmpty()) {
+                    // 后缀区间：bytes=-500 表示最后 500 字节
+                    if (last.isEmpty()) return null;
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) return null;
+                    if (suffix == 0 || total == 0) continue;
+                    ranges.add(new HttpRange(Math.max(0, total - suffix), total - 1));
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) return null;
+                    if (start >= total) continue;
+                    ranges.add(new HttpRange(start, Math.min(end, total - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return coalesce(ranges);
+    }
+
+    private static List<HttpRange> coalesce(List<HttpRange> ranges) {
+        if (ranges.size() < 2) return ranges;
+        ranges.sort(Comparator.comparingLong(HttpRange::start));
+        List<HttpRange> merged = new ArrayList<>(ranges.size());
+        HttpRange cur = ranges.getFirst();
+        for (int i = 1; i < ranges.size(); i++) {
+            HttpRange next = ranges.get(i);
+            if (next.start <= cur.end + 1) {
+                cur = new HttpRange(cur.start, Math.max(cur.end, next.end));
+            } else {
+                merged.add(cur);
+                cur = next;
+            }
+        }
+        merged.add(cur);
+        return merged;
+    }
+}
@@ -0,0 +1,439 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * 文件元数据日志
+ * <p>
+ * 以追加方式记录存储目录中每个文件的名称、大小、修改时间、SHA-256 与 Content-Type，
+ * 启动时回放日志即可重建 {@link StorageIndex}，不必遍历并 stat 整个存储目录。
+ * <p>
+ * - 日志文件整体映射到内存，追加只是一次内存拷贝；容量不足时按倍数扩展并重新映射；
+ * - 每条记录带长度与 CRC32，回放遇到长度为 0（预分配的空白区）或校验失败（崩溃时写了一半）即停止，
+ *   其后的内容清零，后续追加从此处继续；
+ * - 记录数超过上次压缩后有效条目数的 2 倍时由后台线程压缩：在独立的只读映射上回放到当时的末尾并写出新文件，
+ *   再在锁内补上压缩期间追加的尾部记录后原子替换，压缩不阻塞追加；
+ * - 需要持久化时由后台线程每 {@link #SYNC_INTERVAL_MILLIS} 把新追加的记录刷盘一次，追加本身不等待磁盘。
+ *   崩溃时最多丢失最后一个间隔内的记录，日志只是存储目录的元数据副本，丢失的变化由第一次定期全量扫描补上。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+final class MetadataJournal implements Closeable {
+
+    /**
+     * 一个文件的元数据
+     *
+     * @param name         文件名
+     * @param size         文件大小
+     * @param lastModified 修改时间（毫秒）
+     * @param digest       十六进制 SHA-256，未知时为 null
+     * @param contentType  Content-Type，未检测时为 null
+     */
+    record Record(String name, long size, long lastModified, String digest, String contentType) {
+    }
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int HEADER_BYTES = 4; // 记录长度（不含长度本身与 CRC）
+    private static final int CRC_BYTES = 4;
+    private static final long MIN_CAPACITY = 1024 * 1024;
+    private static final int COMPACT_SLACK = 4096; // 记录数超过 2 倍有效条目 + 此值时压缩
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int TAIL_LOCKED_BYTES = 256 * 1024; // 压缩收尾时在锁内拷贝的尾部上限
+    private static final long SYNC_INTERVAL_MILLIS = 1000; // 批量刷盘间隔
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final Path file;
+    private final boolean sync;
+    private final boolean existed;
+    private Map<String, Record> loaded;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition compactRequested = lock.newCondition();
+    private final CRC32 crc = new CRC32(); // 仅在 lock 内使用
+    private final Thread thread;
+    private final Thread syncThread;
+    private FileChannel channel;
+    private Arena arena;
+    private MemorySegment mapped;
+    private long position; // 有效数据末尾
+    private long records; // 当前文件中的记录数
+    private long liveAtCompaction; // 上次压缩（或回放）后的有效条目数
+    private boolean compacting;
+    private boolean dirty; // 上次刷盘后有新追加的记录
+    private volatile boolean closed;
+
+    /**
+     * 打开（必要时创建）日志并回放。
+     *
+     * @param file 日志文件
+     * @param sync 是否定期将新追加的记录刷到磁盘
+     */
+    MetadataJournal(Path file, boolean sync) throws IOException {
+        this.file = file;
+        this.sync = sync;
+        this.existed = Files.isRegularFile(file);
+        Files.deleteIfExists(tmpFile());
+        open(file);
+        this.loaded = replay(mapped, mapped.byteSize(), this);
+        this.liveAtCompaction = loaded.size();
+        mapped.asSlice(position).fill((byte) 0); // 清除损坏的尾部，追加从有效末尾继续
+        this.thread = Thread.ofPlatform().name("metadata-journal").daemon(true).unstarted(this::compactLoop);
+        this.syncThread = sync ? Thread.ofPlatform().name("metadata-journal-sync").daemon(true).unstarted(this::syncLoop) : null;
+    }
+
+    /**
+     * 启动后台压缩（及刷盘）线程。
+     */
+    void start() {
+        thread.start();
+        if (syncThread != null) syncThread.start();
+    }
+
+    /**
+     * 日志文件在打开前是否已存在；不存在时调用方须全量扫描一次建立初始记录。
+     */
+    boolean existed() {
+        return existed;
+    }
+
+    /**
+     * 取走打开时回放得到的全部有效记录，只能调用一次。
+     */
+    Map<String, Record> takeLoaded() {
+        Map<String, Record> result = loaded;
+        loaded = null;
+        return result;
+    }
+
+    /**
+     * 记录文件的当前状态。
+     * <p>
+     * current 在日志锁内求值：同一名称被并发修改时，最后追加的记录读到的一定是最后一次修改后的状态，
+     * 调用方因此可以在索引修改完成（释放索引的锁）之后再追加，不必保证追加顺序与修改顺序一致。
+     *
+     * @param current 返回该文件的最新元数据，文件已删除时返回 null
+     */
+    void write(String name, Supplier<Record> current) throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            Record record = current.get();
+            append(record == null ? encode(OP_REMOVE, name, null) : encode(OP_PUT, name, record));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 追加一条记录；调用方须持有 lock。
+     */
+    private void append(ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        long needed = position + HEADER_BYTES + length + CRC_BYTES;
+        if (needed > mapped.byteSize()) remap(Math.max(needed, mapped.byteSize() * 2));
+        long start = position;
+        mapped.set(INT, start, length);
+        MemorySegment.copy(MemorySegment.ofBuffer(payload), 0, mapped, start + HEADER_BYTES, length);
+        crc.reset();
+        crc.update(payload);
+        mapped.set(INT, start + HEADER_BYTES + length, (int) crc.getValue());
+        position = needed;
+        records++;
+        dirty = true;
+        if (!compacting && records > liveAtCompaction * 2 + COMPACT_SLACK) compactRequested.signal();
+    }
+
+    private static ByteBuffer encode(byte op, String name, Record record) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] digest = record == null ? null : bytes(record.digest());
+        byte[] contentType = record == null ? null : bytes(record.contentType());
+        int length = 1 + 2 + nameBytes.length + (record == null ? 0 : 16 + 1 + digest.length + 1 + contentType.length);
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.put(op).putShort((short) nameBytes.length).put(nameBytes);
+        if (record != null) {
+            buf.putLong(record.size()).putLong(record.lastModified());
+            buf.put((byte) digest.length).put(digest);
+            buf.put((byte) contentType.length).put(contentType);
+        }
+        return buf.flip();
+    }
+
+    private static byte[] bytes(String s) {
+        if (s == null) return new byte[0];
+        byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+        return b.length > 255 ? new byte[0] : b; // 超长的 Content-Type 不记录，下次重新检测
+    }
+
+    /**
+     * 回放 segment 中 [0, limit) 的记录。
+     *
+     * @param owner 非 null 时把有效末尾与记录数写回 owner（启动回放）
+     */
+    private static Map<String, Record> replay(MemorySegment segment, long limit, MetadataJournal owner) {
+        Map<String, Record> state = new HashMap<>();
+        CRC32 crc = new CRC32();
+        long pos = 0;
+        long count = 0;
+        while (pos + HEADER_BYTES + CRC_BYTES <= limit) {
+            int length = segment.get(INT, pos);
+            if (length <= 0 || pos + HEADER_BYTES + length + CRC_BYTES > limit) break;
+            // 拷贝到堆上：共享 Arena 映射出的缓冲区不能直接交给 CRC32
+            byte[] payload = segment.asSlice(pos + HEADER_BYTES, length).toArray(ValueLayout.JAVA_BYTE);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != segment.get(INT, pos + HEADER_BYTES + length)) break;
+            try {
+                apply(ByteBuffer.wrap(payload), state);
+            } catch (RuntimeException e) {
+                break; // 结构不完整，视同损坏
+            }
+            pos += HEADER_BYTES + length + CRC_BYTES;
+            count++;
+        }
+        if (owner != null) {
+            if (pos + HEADER_BYTES <= limit && segment.get(INT, pos) != 0) log.warn("Metadata journal {} - discarding corrupt tail at offset {}", owner.file, pos);
+            owner.position = pos;
+            owner.records = count;
+        }
+        return state;
+    }
+
+    private static void apply(ByteBuffer payload, Map<String, Record> state) {
+        byte op = payload.get();
+        byte[] nameBytes = new byte[payload.getShort() & 0xffff];
+        payload.get(nameBytes);
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+        if (op == OP_REMOVE) {
+            state.remove(name);
+            return;
+        }
+        long size = payload.getLong();
+        long lastModified = payload.getLong();
+        String digest = string(payload);
+        String contentType = string(payload);
+        state.put(name, new Record(name, size, lastModified, digest, contentType));
+    }
+
+    private static String string(ByteBuffer buf) {
+        byte[] b = new byte[buf.get() & 0xff];
+        buf.get(b);
+        return b.length == 0 ? null : new String(b, StandardCharsets.US_ASCII);
+    }
+
+    private void open(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        arena = Arena.ofShared();
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(MIN_CAPACITY, channel.size()), arena);
+    }
+
+    /**
+     * 扩大映射；调用方须持有 lock。
+     */
+    private void remap(long capacity) throws IOException {
+        arena.close();
+        arena = Arena.ofShared();
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity, arena);
+    }
+
+    private Path tmpFile() {
+        return file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+    }
+
+    /**
+     * 定期刷盘：通过 mmap 写入的脏页由文件通道的 fsync 一并刷出，刷盘期间不持有日志锁，追加不受影响。
+     */
+    private void syncLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(SYNC_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            FileChannel ch;
+            lock.lock();
+            try {
+                if (closed || !dirty) continue;
+                dirty = false;
+                ch = channel;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                ch.force(false);
+            } catch (ClosedChannelException e) {
+                // 压缩替换了日志文件：替换前已对新文件 force，之后的追加会重新标记 dirty
+            } catch (IOException e) {
+                log.warn("Metadata journal sync failed: {}", e.toString());
+                lock.lock();
+                try {
+                    dirty = true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private void compactLoop() {
+        while (!closed) {
+            lock.lock();
+            try {
+                while (!closed && records <= liveAtCompaction * 2 + COMPACT_SLACK) compactRequested.awaitUninterruptibly();
+                if (closed) return;
+                compacting = true;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                compact();
+            } catch (Exception e) {
+                log.warn("Metadata journal compaction failed: {}", e.toString());
+                lock.lock();
+                try {
+                    liveAtCompaction = records; // 推迟下一次尝试
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                lock.lock();
+                try {
+                    compacting = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * 压缩：在独立的只读映射上回放到当前末尾并写出有效记录；其后追加的记录先在锁外从文件读出并接到新文件末尾，
+     * 剩余不多时才加锁补齐最后一段并替换日志文件，追加线程只在最后一步短暂等待。
+     */
+    void compact() throws IOException {
+        long snapshotEnd;
+        long snapshotRecords;
+        lock.lock();
+        try {
+            snapshotEnd = position;
+            snapshotRecords = records;
+        } finally {
+            lock.unlock();
+        }
+        long start = System.nanoTime();
+        Path tmp = tmpFile();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Map<String, Record> live;
+            try (Arena readArena = Arena.ofConfined()) {
+                live = replay(in.map(FileChannel.MapMode.READ_ONLY, 0, snapshotEnd, readArena), snapshotEnd, null);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(TAIL_LOCKED_BYTES);
+            CRC32 checksum = new CRC32();
+            for (Record r : live.values()) {
+                ByteBuffer payload = encode(OP_PUT, r.name(), r);
+                if (buf.remaining() < HEADER_BYTES + payload.remaining() + CRC_BYTES) drain(buf, out);
+                checksum.reset();
+                checksum.update(payload.duplicate());
+                buf.putInt(payload.remaining()).put(payload).putInt((int) checksum.getValue());
+            }
+            drain(buf, out);
+
+            // 压缩期间追加的记录原样接到新文件末尾；通过 mmap 写入的数据对普通读取立即可见
+            long copied = snapshotEnd;
+            while (true) {
+                long end;
+                lock.lock();
+                try {
+                    end = position;
+                } finally {
+                    lock.unlock();
+                }
+                if (end - copied <= TAIL_LOCKED_BYTES) break;
+                while (copied < end) {
+                    buf.limit((int) Math.min(buf.capacity(), buf.position() + end - copied));
+                    int n = in.read(buf, copied);
+                    if (n < 0) throw new IOException("Metadata journal truncated during compaction");
+                    copied += n;
+                    if (!buf.hasRemaining()) drain(buf, out);
+                }
+                drain(buf, out);
+            }
+            out.force(true);
+
+            lock.lock();
+            try {
+                if (closed) return;
+                if (position > copied) {
+                    for (long off = copied; off < position; off += buf.capacity()) {
+                        buf.put(mapped.asSlice(off, Math.min(buf.capacity(), position - off)).toArray(ValueLayout.JAVA_BYTE));
+                        drain(buf, out);
+                    }
+                    out.force(true);
+                }
+                long newPosition = out.position();
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                arena.close();
+                channel.close();
+                open(file);
+                long before = records;
+                position = newPosition;
+                records = live.size() + (records - snapshotRecords);
+                liveAtCompaction = live.size();
+                log.info("Metadata journal compacted: {} -> {} records in {} ms", before, records,
+                        (System.nanoTime() - start) / 1_000_000);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void drain(ByteBuffer buf, FileChannel out) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) out.write(buf);
+        buf.clear();
+    }
+
+    /**
+     * 关闭日志：把映射中的改动刷到磁盘，并将文件截断到有效长度。
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            compactRequested.signalAll();
+            mapped.force();
+            arena.close();
+            channel.truncate(position);
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
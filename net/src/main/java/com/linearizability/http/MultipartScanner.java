@@ -0,0 +1,288 @@
+package com.linearizability.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * multipart/form-data 流式扫描器
+ * <p>
+ * 边界在构造时编译一次（Boyer-Moore-Horspool 跳转表），扫描时在调用方提供的单个缓冲区上滑动窗口：
+ * - 数据直接以缓冲区切片的形式回调，不做额外拷贝；
+ * - 每次读取前只把窗口尾部不足一个分隔符长度的字节挪到缓冲区头部；
+ * - 以事件方式（part 开始 / 数据切片 / part 结束）通知调用方。
+ * <p>
+ * 扫描器本身无状态，可在多个线程间复用；缓冲区由调用方持有。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+final class MultipartScanner {
+
+    /**
+     * part 事件回调
+     */
+    interface PartHandler {
+        /**
+         * part 开始
+         *
+         * @param headers part 头部原文（ISO-8859-1 解码，不含结尾的空行）
+         */
+        void onPartStart(String headers) throws IOException;
+
+        /**
+         * part 数据切片，切片仅在回调期间有效
+         */
+        void onPartData(byte[] buf, int off, int len) throws IOException;
+
+        /**
+         * part 结束
+         *
+         * @param complete true 表示遇到了下一个分隔符；false 表示输入流提前结束
+         */
+        void onPartEnd(boolean complete) throws IOException;
+    }
+
+    /**
+     * 缓冲区最小长度，需容纳完整的 part 头部
+     */
+    static final int MIN_BUFFER_SIZE = 16 * 1024;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte DASH = '-';
+    private static final byte[] HEADER_END = {CR, LF, CR, LF};
+
+    private final BytePattern dashBoundary;
+    private final BytePattern delimiter;
+
+    /**
+     * @param dashBoundary 以 "--" 开头的边界字节
+     */
+    MultipartScanner(byte[] dashBoundary) {
+        byte[] delim = new byte[dashBoundary.length + 2];
+        delim[0] = CR;
+        delim[1] = LF;
+        System.arraycopy(dashBoundary, 0, delim, 2, dashBoundary.length);
+        this.dashBoundary = new BytePattern(dashBoundary);
+        this.delimiter = new BytePattern(delim);
+    }
+
+    /**
+     * 扫描整个请求体，直到遇到结束分隔符或输入流结束。
+     *
+     * @param in      请求体输入流
+     * @param buffer  工作缓冲区，长度不小于 {@link #MIN_BUFFER_SIZE}
+     * @param handler part 事件回调
+     * @return true 表示遇到了结束分隔符（--boundary--）；false 表示输入流提前结束
+     * @throws IOException IO 失败或 part 头部超出缓冲区时抛出
+     */
+    boolean scan(InputStream in, byte[] buffer, PartHandler handler) throws IOException {
+        if (buffer.length < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer too small: " + buffer.length);
+        }
+        Window w = new Window(in, buffer);
+
+        // 阶段 1: 跳过前导内容，定位第一个 boundary
+        while (true) {
+            int idx = dashBoundary.indexOf(buffer, w.start, w.end);
+            if (idx >= 0) {
+                w.start = idx + dashBoundary.length();
+                break;
+            }
+            w.start = Math.max(w.start, w.end - dashBoundary.length() + 1);
+            if (!w.fill()) return false;
+        }
+
+        while (true) {
+            // 阶段 2: boundary 之后是 "--"（结束）或 CRLF（下一个 part）
+            if (!w.require(2)) return false;
+            if (buffer[w.start] == DASH && buffer[w.start + 1] == DASH) return true;
+            if (!skipLine(w)) return false;
+
+            // 阶段 3: 收集 part 头部（直到 CRLF CRLF）
+            String headers;
+            if (!w.require(2)) return false;
+            if (buffer[w.start] == CR && buffer[w.start + 1] == LF) {
+                headers = "";
+                w.start += 2;
+            } else {
+                int idx;
+                while ((idx = indexOf(buffer, HEADER_END, w.start, w.end)) < 0) {
+                    if (!w.fill()) return false;
+                }
+                headers = new String(buffer, w.start, idx - w.start, StandardCharsets.ISO_8859_1);
+                w.start = idx + HEADER_END.length;
+            }
+            handler.onPartStart(headers);
+
+            // 阶段 4: 回调 part 数据，直到下一个分隔符（CRLF--boundary）
+            while (true) {
+                int idx = delimiter.indexOf(buffer, w.start, w.end);
+                if (idx >= 0) {
+                    if (idx > w.start) handler.onPartData(buffer, w.start, idx - w.start);
+                    w.start = idx + delimiter.length();
+                    handler.onPartEnd(true);
+                    break;
+                }
+                // 保留可能跨越缓冲区的分隔符前缀，其余数据直接回调
+                int safeEnd = Math.max(w.start, w.end - delimiter.length() + 1);
+                if (safeEnd > w.start) {
+                    handler.onPartData(buffer, w.start, safeEnd - w.start);
+                    w.start = safeEnd;
+                }
+                if (!w.fill()) {
+                    if (w.end > w.start) handler.onPartData(buffer, w.start, w.end - w.start);
+                    handler.onPartEnd(false);
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * 跳过 boundary 之后的填充空白直到 CRLF（含）。
+     */
+    private static boolean skipLine(Window w) throws IOException {
+        while (true) {
+            for (int i = w.start; i + 1 < w.end; i++) {
+                if (w.buf[i] == CR && w.buf[i + 1] == LF) {
+                    w.start = i + 2;
+                    return true;
+                }
+            }
+            w.start = Math.max(w.start, w.end - 1);
+            if (!w.fill()) return false;
+        }
+    }
+
+    /**
+     * 在 buf[from, to) 中朴素查找短模式（如 CRLF CRLF）。
+     */
+    private static int indexOf(byte[] buf, byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buf[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 缓冲区上的有效数据窗口 [start, end)
+     */
+    private static final class Window {
+        private final InputStream in;
+        private final byte[] buf;
+        private int start;
+        private int end;
+
+        Window(InputStream in, byte[] buf) {
+            this.in = in;
+            this.buf = buf;
+        }
+
+        /**
+         * 将窗口剩余数据挪到缓冲区头部并继续读取。
+         *
+         * @return false 表示输入流已结束
+         */
+        boolean fill() throws IOException {
+            if (start > 0) {
+                int remaining = end - start;
+                if (remaining > 0) System.arraycopy(buf, start, buf, 0, remaining);
+                start = 0;
+                end = remaining;
+            }
+            if (end == buf.length) {
+                throw new IOException("Multipart part headers exceed " + buf.length + " bytes");
+            }
+            int n = in.read(buf, end, buf.length - end);
+            if (n < 0) return false;
+            end += n;
+            return true;
+        }
+
+        /**
+         * 确保窗口中至少有 n 个字节。
+         */
+        boolean require(int n) throws IOException {
+            while (end - start < n) {
+                if (!fill()) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 预编译的字节模式（Boyer-Moore-Horspool），跳转表只构建一次。
+     * <p>
+     * 当运行时加载了 jdk.incubator.vector 模块（--add-modules jdk.incubator.vector）时，
+     * 较长的窗口改用 {@link VectorByteSearch} 的 SIMD 首尾字节过滤查找，否则使用标量查找。
+     * 可通过 -Dfiletransfer.vectorSearch=false 强制关闭。
+     */
+    static final class BytePattern {
+        static final boolean VECTOR_SEARCH = Boolean.parseBoolean(System.getProperty("filetransfer.vectorSearch", "true"))
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+        private static final int VECTOR_MIN_WINDOW = 256;
+
+        private final byte[] pattern;
+        private final int[] shift = new int[256];
+
+        BytePattern(byte[] pattern) {
+            if (pattern.length == 0) throw new IllegalArgumentException("Empty pattern");
+            this.pattern = pattern.clone();
+            int len = pattern.length;
+            Arrays.fill(shift, len);
+            for (int i = 0; i < len - 1; i++) {
+                shift[pattern[i] & 0xFF] = len - 1 - i;
+            }
+        }
+
+        int length() {
+            return pattern.length;
+        }
+
+        byte[] bytes() {
+            return pattern;
+        }
+
+        /**
+         * 在 buf[from, to) 中查找模式第一次出现的位置。
+         *
+         * @return 匹配位置或 -1
+         */
+        int indexOf(byte[] buf, int from, int to) {
+            if (VECTOR_SEARCH && to - from >= VECTOR_MIN_WINDOW) {
+                return VectorByteSearch.indexOf(buf, from, to, pattern);
+            }
+            return indexOfScalar(buf, from, to);
+        }
+
+        /**
+         * 标量 Boyer-Moore-Horspool 查找。
+         */
+        int indexOfScalar(byte[] buf, int from, int to) {
+            int last = pattern.length - 1;
+            byte lastByte = pattern[last];
+            int i = from + last;
+            while (i < to) {
+                byte b = buf[i];
+                if (b == lastByte) {
+                    int j = last - 1;
+                    int k = i - 1;
+                    while (j >= 0 && buf[k] == pattern[j]) {
+                        j--;
+                        k--;
+                    }
+                    if (j < 0) return k + 1;
+                }
+                i += shift[b & 0xFF];
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,1164 @@
+package com.linearizability.http;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于 Selector / SocketChannel 的非阻塞 HTTP/1.1 服务
+ * <p>
+ * 实现 {@link HttpServer} 抽象类，沿用 {@link HttpHandler} / {@link HttpExchange} 契约，现有处理器无需修改即可切换：
+ * - 少量事件循环线程负责 accept、读取请求头以及空闲 keep-alive 连接，空闲连接不占用读缓冲区；
+ * - 请求头解析完成后交给执行器（默认每个请求一个虚拟线程）运行处理器，处理器看到的是阻塞流，
+ *   底层 socket 写满/读空时挂起当前线程并向事件循环登记兴趣事件，就绪后再唤醒；
+ * - 响应流实现 {@link FileRegionSink}，文件下载可直接 transferTo 到 socket（sendfile）。
+ * <p>
+ * 通过 -Dhttp.engine=nio 启用（见 {@link #createServer}），其余参数：
+ * http.nio.loops、http.nio.maxConnections、http.nio.sendBuffer、http.nio.receiveBuffer、
+ * http.nio.keepAliveSeconds、http.nio.ioTimeoutSeconds、http.nio.writeSpin。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+public class NioHttpServer extends HttpServer {
+
+    // ============ 运行配置 ============
+    public static final String ENGINE_PROPERTY = "http.engine";
+    private static final int EVENT_LOOPS = Integer.getInteger("http.nio.loops", Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int MAX_CONNECTIONS = Integer.getInteger("http.nio.maxConnections", 50_000);
+    private static final int SEND_BUFFER = Integer.getInteger("http.nio.sendBuffer", 0); // 0 表示使用系统默认值
+    private static final int RECEIVE_BUFFER = Integer.getInteger("http.nio.receiveBuffer", 0);
+    private static final long KEEP_ALIVE_MILLIS = Long.getLong("http.nio.keepAliveSeconds", 60L) * 1000;
+    private static final long IO_TIMEOUT_MILLIS = Long.getLong("http.nio.ioTimeoutSeconds", 120L) * 1000;
+    private static final int WRITE_SPIN = Integer.getInteger("http.nio.writeSpin", 4); // socket 写满时挂起前的重试次数
+
+    // ============ 协议与缓冲区常量 ============
+    private static final int HEAD_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final int RESPONSE_BUFFER_SIZE = 16 * 1024;
+    private static final long MAX_DRAIN_BYTES = 1024 * 1024; // 处理器未读完请求体时，最多丢弃这么多字节以复用连接
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    private static final String HTTP_1_0 = "HTTP/1.0";
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final String CRLF = "\r\n";
+    private static final byte[] CONTINUE_100 = ("HTTP/1.1 100 Continue" + CRLF + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LAST_CHUNK = ("0" + CRLF + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+
+    private final List<NioContext> contexts = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger activeExchanges = new AtomicInteger();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private InetSocketAddress address;
+    private Executor executor;
+    private ExecutorService defaultExecutor;
+    private EventLoop[] loops;
+    private volatile boolean running;
+
+    /**
+     * 按 -Dhttp.engine 创建服务：nio 使用本实现，其余使用 JDK 自带的 HttpServer。
+     */
+    public static HttpServer createServer(InetSocketAddress address, int backlog) throws IOException {
+        if ("nio".equalsIgnoreCase(System.getProperty(ENGINE_PROPERTY))) {
+            NioHttpServer server = new NioHttpServer();
+            server.bind(address, backlog);
+            return server;
+        }
+        return HttpServer.create(address, backlog);
+    }
+
+    @Override
+    public void bind(InetSocketAddress addr, int backlog) throws IOException {
+        if (serverChannel != null) throw new IllegalStateException("Server already bound");
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (RECEIVE_BUFFER > 0) serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+        serverChannel.bind(addr, backlog);
+        serverChannel.configureBlocking(false);
+        address = (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    @Override
+    public void start() {
+        if (serverChannel == null) throw new IllegalStateException("Server not bound");
+        if (running) throw new IllegalStateException("Server already started");
+        if (executor == null) {
+            defaultExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("nio-http-", 0).factory());
+            executor = defaultExecutor;
+        }
+        running = true;
+        loops = new EventLoop[Math.max(1, EVENT_LOOPS)];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+            }
+            serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to start event loops", e);
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        log.info("NIO HTTP server started on {} with {} event loops", address, loops.length);
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        if (running) throw new IllegalStateException("Server already started");
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void stop(int delay) {
+        if (!running) return;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        long deadline = System.currentTimeMillis() + delay * 1000L;
+        while (activeExchanges.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        running = false;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        if (defaultExecutor != null) defaultExecutor.shutdown();
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        NioContext ctx = createContext(path);
+        ctx.setHandler(handler);
+        return ctx;
+    }
+
+    @Override
+    public NioContext createContext(String path) {
+        if (path == null || !path.startsWith("/")) throw new IllegalArgumentException("Invalid context path: " + path);
+        for (NioContext ctx : contexts) {
+            if (ctx.getPath().equals(path)) throw new IllegalArgumentException("Context already exists: " + path);
+        }
+        NioContext ctx = new NioContext(path);
+        contexts.add(ctx);
+        return ctx;
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (!contexts.removeIf(ctx -> ctx.getPath().equals(path))) {
+            throw new IllegalArgumentException("No context: " + path);
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        if (!contexts.remove(context)) throw new IllegalArgumentException("No context: " + context.getPath());
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * 与 JDK 实现一致：按路径前缀匹配，取最长的上下文。
+     */
+    private NioContext findContext(String path) {
+        NioContext best = null;
+        for (NioContext ctx : contexts) {
+            if (path.startsWith(ctx.getPath()) && (best == null || ctx.getPath().length() > best.getPath().length())) {
+                best = ctx;
+            }
+        }
+        return best;
+    }
+
+    // ============ 事件循环 ============
+
+    /**
+     * 事件循环：单线程持有一个 Selector，负责 accept、读请求头、唤醒等待 IO 的处理器线程以及清理空闲连接。
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Set<Connection> connections = new HashSet<>(); // 仅由事件循环线程访问
+        private long lastSweep = System.currentTimeMillis();
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = Thread.ofPlatform().name("nio-loop-" + index).daemon(false).unstarted(this);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(SWEEP_INTERVAL_MILLIS);
+                    runTasks();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            ((Connection) key.attachment()).onReady(key);
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+                        sweep(now);
+                        lastSweep = now;
+                    }
+                } catch (Throwable t) {
+                    log.error("Event loop error", t);
+                }
+            }
+            for (Connection conn : connections) {
+                conn.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.warn("Event loop task failed", t);
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel ch;
+            while ((ch = serverChannel.accept()) != null) {
+                if (connectionCount.incrementAndGet() > MAX_CONNECTIONS) {
+                    connectionCount.decrementAndGet();
+                    ch.close();
+                    log.warn("Connection limit {} reached, rejecting connection", MAX_CONNECTIONS);
+                    continue;
+                }
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (SEND_BUFFER > 0) ch.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+                if (RECEIVE_BUFFER > 0) ch.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+                EventLoop target = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = ch;
+                if (target == this) {
+                    register(accepted);
+                } else {
+                    target.execute(() -> target.register(accepted));
+                }
+            }
+        }
+
+        private void register(SocketChannel ch) {
+            Connection conn = new Connection(ch, this);
+            try {
+                conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+                connections.add(conn);
+            } catch (IOException e) {
+                conn.close();
+            }
+        }
+
+        /**
+         * 关闭超时的空闲 keep-alive 连接，并移除已关闭的连接。
+         */
+        private void sweep(long now) {
+            Iterator<Connection> it = connections.iterator();
+            while (it.hasNext()) {
+                Connection conn = it.next();
+                if (!conn.channel.isOpen()) {
+                    it.remove();
+                } else if (!conn.dispatched && now - conn.lastActive > KEEP_ALIVE_MILLIS) {
+                    conn.close();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // ============ 连接 ============
+
+    /**
+     * 单个 TCP 连接。
+     * <p>
+     * 空闲或读取请求头阶段由事件循环线程独占；请求派发后由处理器线程独占，
+     * 处理器线程通过 {@link #await(int)} 借助事件循环等待 socket 就绪。
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final Semaphore ready = new Semaphore(0);
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private SelectionKey key;
+        private byte[] buf; // 请求头及其后已读入的数据 [start, end)，空闲时释放
+        private int start;
+        private int end;
+        private volatile boolean dispatched;
+        private volatile long lastActive = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        /**
+         * 事件循环线程：socket 就绪。
+         */
+        void onReady(SelectionKey key) {
+            if (dispatched) {
+                key.interestOps(0);
+                ready.release();
+                return;
+            }
+            try {
+                if (buf == null) {
+                    buf = new byte[HEAD_BUFFER_SIZE];
+                    start = end = 0;
+                }
+                if (end == buf.length) {
+                    if (start > 0) {
+                        System.arraycopy(buf, start, buf, 0, end - start);
+                        end -= start;
+                        start = 0;
+                    } else if (buf.length < MAX_HEAD_SIZE) {
+                        buf = Arrays.copyOf(buf, Math.min(buf.length * 2, MAX_HEAD_SIZE));
+                    } else {
+                        reject(431, "Request Header Fields Too Large");
+                        return;
+                    }
+                }
+                int n = channel.read(ByteBuffer.wrap(buf, end, buf.length - end));
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                end += n;
+                lastActive = System.currentTimeMillis();
+                tryDispatch();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * 事件循环线程：若缓冲区中已有完整请求头则解析并派发给执行器。
+         */
+        private void tryDispatch() throws IOException {
+            // 跳过请求之间多余的 CRLF
+            while (start < end && (buf[start] == '\r' || buf[start] == '\n')) start++;
+            int headEnd = indexOfHeadEnd();
+            if (headEnd < 0) {
+                if (start == end) {
+                    buf = null; // 无残留数据，释放缓冲区
+                }
+                return;
+            }
+
+            NioExchange exchange;
+            try {
+                exchange = parseRequest(new String(buf, start, headEnd - start, StandardCharsets.ISO_8859_1));
+            } catch (IllegalArgumentException e) {
+                reject(400, "Bad Request");
+                return;
+            }
+            start = headEnd + 4;
+
+            dispatched = true;
+            key.interestOps(0);
+            activeExchanges.incrementAndGet();
+            try {
+                executor.execute(() -> serve(exchange));
+            } catch (RejectedExecutionException e) {
+                activeExchanges.decrementAndGet();
+                close();
+            }
+        }
+
+        private int indexOfHeadEnd() {
+            for (int i = start; i + 3 < end; i++) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n') return i;
+            }
+            return -1;
+        }
+
+        private NioExchange parseRequest(String head) {
+            String[] lines = head.split(CRLF);
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+                throw new IllegalArgumentException("Malformed request line");
+            }
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) throw new IllegalArgumentException("Malformed header");
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            URI uri;
+            try {
+                uri = new URI(requestLine[1]);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException(e);
+            }
+            return new NioExchange(this, requestLine[0], uri, requestLine[2], headers);
+        }
+
+        /**
+         * 事件循环线程：直接回复错误并关闭连接。
+         */
+        private void reject(int code, String reason) {
+            String resp = HTTP_1_1 + " " + code + " " + reason + CRLF + "Content-Length: 0" + CRLF + "Connection: close" + CRLF + CRLF;
+            try {
+                channel.write(ByteBuffer.wrap(resp.getBytes(StandardCharsets.ISO_8859_1)));
+            } catch (IOException ignored) {
+            }
+            close();
+        }
+
+        /**
+         * 处理器线程：交还连接给事件循环，继续读取下一个请求。
+         */
+        void resume() {
+            loop.execute(() -> {
+                dispatched = false;
+                ready.drainPermits();
+                lastActive = System.currentTimeMillis();
+                if (!key.isValid()) return;
+                try {
+                    key.interestOps(SelectionKey.OP_READ);
+                    if (buf != null && start < end) {
+                        tryDispatch(); // 流水线请求
+                    } else {
+                        buf = null;
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        /**
+         * 处理器线程：挂起直到事件循环报告 socket 就绪。
+         */
+        void await(int ops) throws IOException {
+            loop.execute(() -> {
+                if (key.isValid()) {
+                    key.interestOps(ops);
+                } else {
+                    ready.release();
+                }
+            });
+            try {
+                if (!ready.tryAcquire(IO_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException("I/O timeout after " + IO_TIMEOUT_MILLIS + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for socket", e);
+            }
+            if (!channel.isOpen()) throw new ClosedChannelException();
+        }
+
+        /**
+         * 处理器线程：读取请求数据，优先消费请求头之后已缓冲的字节。
+         *
+         * @return 读取的字节数，-1 表示对端关闭
+         */
+        int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (buf != null && start < end) {
+                int n = Math.min(len, end - start);
+                System.arraycopy(buf, start, b, off, n);
+                start += n;
+                return n;
+            }
+            ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+            while (true) {
+                int n = channel.read(dst);
+                if (n != 0) return n;
+                await(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * 处理器线程：完整写出缓冲区，socket 写满时先自旋重试 WRITE_SPIN 次再挂起等待。
+         */
+        void write(ByteBuffer src) throws IOException {
+            int spins = 0;
+            while (src.hasRemaining()) {
+                if (channel.write(src) > 0) {
+                    spins = 0;
+                } else if (++spins > WRITE_SPIN) {
+                    await(SelectionKey.OP_WRITE);
+                    spins = 0;
+                }
+            }
+        }
+
+        /**
+         * 处理器线程：通过 transferTo 将文件区间直接写入 socket。
+         */
+        long transferFrom(FileChannel fc, long position, long count) throws IOException {
+            long done = 0;
+            int spins = 0;
+            while (done < count) {
+                long n = fc.transferTo(position + done, count - done, channel);
+                if (n > 0) {
+                    done += n;
+                    spins = 0;
+                } else if (position + done >= fc.size()) {
+                    break; // 文件被截断
+                } else if (++spins > WRITE_SPIN) {
+                    await(SelectionKey.OP_WRITE);
+                    spins = 0;
+                }
+            }
+            return done;
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            connectionCount.decrementAndGet();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            ready.release();
+        }
+    }
+
+    /**
+     * 处理器线程：执行过滤器链与处理器，结束后决定复用还是关闭连接。
+     */
+    private void serve(NioExchange exchange) {
+        Connection conn = exchange.conn;
+        try {
+            if ("100-continue".equalsIgnoreCase(exchange.requestHeaders.getFirst("Expect"))) {
+                conn.write(ByteBuffer.wrap(CONTINUE_100));
+            }
+            NioContext ctx = findContext(exchange.uri.getPath() == null ? "/" : exchange.uri.getPath());
+            if (ctx == null || ctx.getHandler() == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.context = ctx;
+                new Filter.Chain(ctx.getFilters(), ctx.getHandler()).doFilter(exchange);
+            }
+            if (exchange.finish()) {
+                conn.resume();
+            } else {
+                conn.close();
+            }
+        } catch (Throwable t) {
+            if (!(t instanceof IOException)) {
+                log.warn("Handler failed: {} {}", exchange.method, exchange.uri, t);
+            }
+            conn.close();
+        } finally {
+            activeExchanges.decrementAndGet();
+        }
+    }
+
+    // ============ 交换 ============
+
+    /**
+     * 单次请求/响应，对处理器表现为标准的 {@link HttpExchange}。
+     */
+    private final class NioExchange extends HttpExchange {
+        private final Connection conn;
+        private final String method;
+        private final URI uri;
+        private final String protocol;
+        private final Headers requestHeaders;
+        private final Headers responseHeaders = new Headers();
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final boolean keepAlive;
+        private final RequestBody requestBody;
+        private final ResponseBody responseBody;
+        private InputStream requestStream;
+        private OutputStream responseStream;
+        private NioContext context;
+        private int responseCode = -1;
+
+        NioExchange(Connection conn, String method, URI uri, String protocol, Headers requestHeaders) {
+            this.conn = conn;
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.requestHeaders = requestHeaders;
+            this.responseBody = new ResponseBody(conn);
+            String connection = requestHeaders.getFirst("Connection");
+            this.keepAlive = HTTP_1_0.equalsIgnoreCase(protocol)
+                    ? "keep-alive".equalsIgnoreCase(connection)
+                    : !"close".equalsIgnoreCase(connection);
+
+            String te = requestHeaders.getFirst("Transfer-Encoding");
+            if (te != null && te.toLowerCase().contains("chunked")) {
+                this.requestBody = new ChunkedRequestBody(conn);
+            } else {
+                String cl = requestHeaders.getFirst("Content-Length");
+                long length;
+                try {
+                    length = cl == null ? 0 : Long.parseLong(cl.trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid Content-Length");
+                }
+                if (length < 0) throw new IllegalArgumentException("Invalid Content-Length");
+                this.requestBody = new FixedRequestBody(conn, length);
+            }
+            this.requestStream = requestBody;
+            this.responseStream = responseBody;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return uri;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return method;
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return context;
+        }
+
+        @Override
+        public void close() {
+            try {
+                responseStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return requestStream;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return responseStream;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            if (responseCode != -1) throw new IOException("Response headers already sent");
+            responseCode = rCode;
+
+            boolean head = "HEAD".equalsIgnoreCase(method);
+            boolean noBody = head || rCode == 204 || rCode == 304 || rCode < 200 || responseLength < 0;
+            boolean close = !keepAlive;
+            if (noBody) {
+                if (!head && rCode != 204 && rCode != 304) responseHeaders.set("Content-Length", "0");
+                responseBody.fixed(0);
+            } else if (responseLength > 0) {
+                responseHeaders.set("Content-Length", String.valueOf(responseLength));
+                responseBody.fixed(responseLength);
+            } else if (HTTP_1_1.equalsIgnoreCase(protocol)) {
+                responseHeaders.set("Transfer-Encoding", "chunked");
+                responseBody.chunked();
+            } else {
+                close = true; // HTTP/1.0 未知长度：以关闭连接表示结束
+                responseBody.untilClose();
+            }
+            if (close) {
+                responseHeaders.set("Connection", "close");
+                responseBody.closeConnection = true;
+            }
+            responseHeaders.set("Date", HttpDate.now());
+
+            StringBuilder sb = new StringBuilder(256);
+            sb.append(HTTP_1_1).append(' ').append(rCode).append(' ').append(reasonPhrase(rCode)).append(CRLF);
+            for (Map.Entry<String, List<String>> e : responseHeaders.entrySet()) {
+                for (String v : e.getValue()) {
+                    sb.append(e.getKey()).append(": ").append(v).append(CRLF);
+                }
+            }
+            sb.append(CRLF);
+            responseBody.writeHead(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (noBody) responseBody.flush();
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            try {
+                return (InetSocketAddress) conn.channel.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            try {
+                return (InetSocketAddress) conn.channel.getLocalAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String getProtocol() {
+            return protocol;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            if (value == null) attributes.remove(name);
+            else attributes.put(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null) requestStream = i;
+            if (o != null) responseStream = o;
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+
+        /**
+         * 处理器返回后收尾：补发缺失的响应、结束响应体、丢弃未读的请求体。
+         *
+         * @return true 表示连接可以复用
+         */
+        boolean finish() throws IOException {
+            if (responseCode == -1) {
+                log.warn("Handler returned without a response: {} {}", method, uri);
+                responseHeaders.set("Connection", "close");
+                sendResponseHeaders(500, -1);
+                return false;
+            }
+            responseStream.close();
+            responseBody.close();
+            if (!responseBody.complete || responseBody.closeConnection) return false;
+            return requestBody.drain(MAX_DRAIN_BYTES);
+        }
+    }
+
+    // ============ 请求体 ============
+
+    private abstract static class RequestBody extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        /**
+         * 丢弃剩余请求体，超出上限时放弃（连接随后关闭）。
+         *
+         * @return true 表示请求体已完整读取
+         */
+        boolean drain(long limit) throws IOException {
+            byte[] skip = new byte[8192];
+            long drained = 0;
+            int n;
+            while ((n = read(skip, 0, skip.length)) >= 0) {
+                drained += n;
+                if (drained > limit) return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class FixedRequestBody extends RequestBody {
+        private final Connection conn;
+        private long remaining;
+
+        FixedRequestBody(Connection conn, long length) {
+            this.conn = conn;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = conn.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) throw new IOException("Connection closed with " + remaining + " request bytes outstanding");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+    }
+
+    /**
+     * Transfer-Encoding: chunked 请求体解码
+     */
+    private static final class ChunkedRequestBody extends RequestBody {
+        private final Connection conn;
+        private final byte[] one = new byte[1];
+        private long chunkRemaining;
+        private boolean eof;
+
+        ChunkedRequestBody(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) return -1;
+            if (chunkRemaining == 0) {
+                String sizeLine = readLine();
+                int semi = sizeLine.indexOf(';');
+                try {
+                    chunkRemaining = Long.parseLong((semi >= 0 ? sizeLine.substring(0, semi) : sizeLine).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + sizeLine);
+                }
+                if (chunkRemaining == 0) {
+                    while (!readLine().isEmpty()) {
+                        // 忽略 trailer
+                    }
+                    eof = true;
+                    return -1;
+                }
+            }
+            int n = conn.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (n < 0) throw new IOException("Connection closed inside chunk");
+            chunkRemaining -= n;
+            if (chunkRemaining == 0 && !readLine().isEmpty()) {
+                throw new IOException("Missing CRLF after chunk");
+            }
+            return n;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (conn.read(one, 0, 1) < 0) throw new IOException("Connection closed inside chunked body");
+                char c = (char) (one[0] & 0xFF);
+                if (c == '\n') break;
+                if (c != '\r') sb.append(c);
+                if (sb.length() > 4096) throw new IOException("Chunk line too long");
+            }
+            return sb.toString();
+        }
+    }
+
+    // ============ 响应体 ============
+
+    /**
+     * 响应体输出流：响应头与小块数据合并到同一缓冲区后写出，支持定长、chunked 与以关闭连接结束三种模式。
+     */
+    private final class ResponseBody extends OutputStream implements FileRegionSink {
+        private static final int MODE_NONE = 0;
+        private static final int MODE_FIXED = 1;
+        private static final int MODE_CHUNKED = 2;
+        private static final int MODE_UNTIL_CLOSE = 3;
+
+        private ByteBuffer pending;
+        private int mode = MODE_NONE;
+        private long remaining;
+        private boolean closed;
+        private boolean complete;
+        private boolean closeConnection;
+        private final Connection conn;
+
+        ResponseBody(Connection conn) {
+            this.conn = conn;
+        }
+
+        void fixed(long length) {
+            mode = MODE_FIXED;
+            remaining = length;
+        }
+
+        void chunked() {
+            mode = MODE_CHUNKED;
+        }
+
+        void untilClose() {
+            mode = MODE_UNTIL_CLOSE;
+        }
+
+        void writeHead(byte[] head) {
+            pending = ByteBuffer.allocate(Math.max(RESPONSE_BUFFER_SIZE, head.length));
+            pending.put(head);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Response body closed");
+            if (mode == MODE_NONE) throw new IOException("Response headers not sent");
+            if (len == 0) return;
+            if (mode == MODE_FIXED) {
+                if (len > remaining) throw new IOException("Too many bytes to write to response body");
+                remaining -= len;
+            }
+            if (mode == MODE_CHUNKED) {
+                writeRaw(Long.toHexString(len).concat(CRLF).getBytes(StandardCharsets.ISO_8859_1), 0, -1);
+                writeRaw(b, off, len);
+                writeRaw(CRLF.getBytes(StandardCharsets.ISO_8859_1), 0, -1);
+            } else {
+                writeRaw(b, off, len);
+            }
+        }
+
+        /**
+         * 小块数据进入缓冲区，大块数据先清空缓冲区再直接写出。
+         */
+        private void writeRaw(byte[] b, int off, int len) throws IOException {
+            if (len < 0) len = b.length;
+            if (pending.remaining() >= len) {
+                pending.put(b, off, len);
+                return;
+            }
+            flushPending();
+            if (len >= pending.capacity()) {
+                conn.write(ByteBuffer.wrap(b, off, len));
+            } else {
+                pending.put(b, off, len);
+            }
+        }
+
+        private void flushPending() throws IOException {
+            if (pending != null && pending.position() > 0) {
+                pending.flip();
+                conn.write(pending);
+                pending.clear();
+            }
+        }
+
+        @Override
+        public long transferFrom(FileChannel fc, long position, long count) throws IOException {
+            if (closed) throw new IOException("Response body closed");
+            if (mode == MODE_NONE) throw new IOException("Response headers not sent");
+            if (mode == MODE_FIXED && count > remaining) throw new IOException("Too many bytes to write to response body");
+            if (mode == MODE_CHUNKED) {
+                writeRaw(Long.toHexString(count).concat(CRLF).getBytes(StandardCharsets.ISO_8859_1), 0, -1);
+            }
+            flushPending();
+            long n = conn.transferFrom(fc, position, count);
+            if (mode == MODE_FIXED) remaining -= n;
+            if (mode == MODE_CHUNKED) {
+                if (n != count) throw new IOException("File truncated while sending chunk");
+                writeRaw(CRLF.getBytes(StandardCharsets.ISO_8859_1), 0, -1);
+            }
+            return n;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed || mode == MODE_NONE) return;
+            flushPending();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed || mode == MODE_NONE) return;
+            closed = true;
+            if (mode == MODE_CHUNKED) writeRaw(LAST_CHUNK, 0, -1);
+            flushPending();
+            complete = mode != MODE_FIXED || remaining == 0;
+            if (mode == MODE_UNTIL_CLOSE) closeConnection = true;
+        }
+    }
+
+    // ============ 上下文 ============
+
+    private final class NioContext extends HttpContext {
+        private final String path;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final List<Filter> filters = new ArrayList<>();
+        private HttpHandler handler;
+        private Authenticator authenticator;
+
+        NioContext(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            if (handler == null) throw new NullPointerException("handler");
+            if (this.handler != null) throw new IllegalArgumentException("Handler already set");
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return NioHttpServer.this;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator old = authenticator;
+            authenticator = auth;
+            return old;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+
+    // ============ 工具方法 ============
+
+    private static String reasonPhrase(int code) {
+        return switch (code) {
+            case 100 -> "Continue";
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 204 -> "No Content";
+            case 206 -> "Partial Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 304 -> "Not Modified";
+            case 400 -> "Bad Request";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 409 -> "Conflict";
+            case 413 -> "Content Too Large";
+            case 416 -> "Range Not Satisfiable";
+            case 429 -> "Too Many Requests";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 503 -> "Service Unavailable";
+            default -> "Status " + code;
+        };
+    }
+
+    /**
+     * Date 响应头，按秒缓存格式化结果。
+     */
+    private static final class HttpDate {
+        private static volatile long cachedSecond;
+        private static volatile String cachedValue = "";
+
+        static String now() {
+            long second = System.currentTimeMillis() / 1000;
+            if (second != cachedSecond) {
+                cachedValue = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochSecond(second).atZone(ZoneOffset.UTC));
+                cachedSecond = second;
+            }
+            return cachedValue;
+        }
+    }
+}
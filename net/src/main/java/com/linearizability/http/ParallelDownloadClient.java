@@ -0,0 +1,400 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serial;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 多连接并行下载客户端
+ * <p>
+ * 先 HEAD 获取文件大小与校验器（ETag），再把文件切分为若干区间，由 N 个虚拟线程各自通过独立的 TCP 连接
+ * 并发发起 Range 请求，按偏移位置写入预分配的临时文件：
+ * - 区间数多于连接数，快的连接会继续领取剩余区间，慢连接不会拖住整体；
+ * - 每个区间写入并 force 后记录到旁路状态文件（target.part.state），中断后重新执行即可续传；
+ * - 请求携带 If-Range，服务端文件变化时不会把新旧内容拼在一起；
+ * - 完成后校验总大小与 SHA-256（来自 --sha256 参数或服务端的 Repr-Digest / Digest 头）再原子改名。
+ * <p>
+ * 用法：ParallelDownloadClient &lt;url&gt; [output] [-n streams] [--sha256 hex]
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+public class ParallelDownloadClient {
+
+    // ============ 下载配置 ============
+    private static final int DEFAULT_STREAMS = 8;
+    private static final int SEGMENTS_PER_STREAM = 4; // 每个连接平均领取的区间数
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 3; // 单个区间的最大尝试次数
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    // ============ 文件与状态常量 ============
+    private static final String PART_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".part.state";
+    private static final String KEY_URL = "url";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_SEGMENT_SIZE = "segmentSize";
+    private static final String KEY_DONE = "done";
+
+    // ============ HTTP 常量 ============
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_IF_RANGE = "If-Range";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_REPR_DIGEST = "Repr-Digest";
+    private static final String HEADER_DIGEST = "Digest";
+
+    private final int streams;
+    private final HttpClient client;
+
+    public ParallelDownloadClient(int streams) {
+        if (streams < 1) throw new IllegalArgumentException("streams must be positive");
+        this.streams = streams;
+        // HTTP/1.1：并发请求各自占用一条 TCP 连接，才能叠加多条连接的窗口
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    /**
+     * 下载文件到 target，若存在与服务端一致的状态文件则续传。
+     *
+     * @param uri            文件地址
+     * @param target         输出文件
+     * @param expectedSha256 期望的 SHA-256（十六进制），为 null 时使用服务端提供的摘要（若有）
+     * @return 下载的字节数
+     * @throws IOException 请求失败、服务端文件变化或校验不通过时抛出
+     */
+    public long download(URI uri, Path target, String expectedSha256) throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        HttpResponse<Void> head = client.send(HttpRequest.newBuilder(uri).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.discarding());
+        if (head.statusCode() != 200) throw new IOException("HEAD " + uri + " returned " + head.statusCode());
+        long size = head.headers().firstValueAsLong("Content-Length").orElse(-1);
+        String etag = head.headers().firstValue(HEADER_ETAG).orElse(null);
+        String lastModified = head.headers().firstValue(HEADER_LAST_MODIFIED).orElse(null);
+        boolean ranges = "bytes".equalsIgnoreCase(head.headers().firstValue(HEADER_ACCEPT_RANGES).orElse(""));
+        String expected = expectedSha256 != null ? expectedSha256.toLowerCase() : serverSha256(head);
+
+        Path part = sibling(target, PART_SUFFIX);
+        Path stateFile = sibling(target, STATE_SUFFIX);
+        if (size < 0 || !ranges) {
+            log.info("Server does not support ranges for {}, falling back to a single stream", uri);
+            Files.deleteIfExists(stateFile);
+            try (InputStream in = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofInputStream()).body()) {
+                Files.copy(in, part, StandardCopyOption.REPLACE_EXISTING);
+            }
+            size = Files.size(part);
+        } else {
+            State state = State.load(stateFile);
+            if (state == null || !state.matches(uri, size, etag, lastModified) || !Files.exists(part)) {
+                long segmentSize = Math.max(MIN_SEGMENT_SIZE, (size + (long) streams * SEGMENTS_PER_STREAM - 1) / ((long) streams * SEGMENTS_PER_STREAM));
+                state = new State(stateFile, uri.toString(), size, etag, lastModified, segmentSize, new BitSet());
+                try (RandomAccessFile raf = new RandomAccessFile(part.toFile(), "rw")) {
+                    raf.setLength(size);
+                }
+                state.save();
+            } else {
+                log.info("Resuming {}: {}/{} segments already downloaded", target, state.done.cardinality(), state.segmentCount());
+            }
+            fetchSegments(uri, part, state);
+        }
+
+        if (Files.size(part) != size) throw new IOException("Size mismatch: expected " + size + " bytes, got " + Files.size(part));
+        String actual = sha256(part);
+        if (expected != null && !expected.equals(actual)) {
+            throw new IOException("Checksum mismatch: expected sha-256 " + expected + ", got " + actual);
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(stateFile);
+
+        double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+        log.info("Downloaded {} ({} bytes, {} streams) in {} s, {} MB/s, sha-256 {}{}", target, size, streams,
+                String.format("%.2f", seconds), String.format("%.2f", size / 1024.0 / 1024.0 / seconds), actual,
+                expected != null ? " (verified)" : "");
+        return size;
+    }
+
+    /**
+     * 由 N 个虚拟线程领取并下载尚未完成的区间。
+     */
+    private void fetchSegments(URI uri, Path part, State state) throws IOException, InterruptedException {
+        Queue<Integer> pending = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < state.segmentCount(); i++) {
+            if (!state.isDone(i)) pending.add(i);
+        }
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE);
+             ExecutorService workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("download-", 0).factory())) {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int w = 0; w < Math.min(streams, pending.size()); w++) {
+                futures.add(workers.submit(() -> {
+                    Integer index;
+                    while ((index = pending.poll()) != null) {
+                        fetchSegmentWithRetry(uri, channel, state, index);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    workers.shutdownNow();
+                    if (e.getCause() instanceof IOException io) throw io;
+                    throw new IOException(e.getCause());
+                }
+            }
+            channel.force(true);
+        }
+    }
+
+    private void fetchSegmentWithRetry(URI uri, FileChannel channel, State state, int index)
+            throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                fetchSegment(uri, channel, state, index);
+                return;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || e instanceof ResourceChangedException) throw e;
+                log.warn("Segment {} attempt {} failed: {}, retrying", index, attempt, e.getMessage());
+                Thread.sleep(200L * attempt);
+            }
+        }
+    }
+
+    /**
+     * 下载单个区间并写入对应位置，写入并 force 后在状态文件中标记完成。
+     */
+    private void fetchSegment(URI uri, FileChannel channel, State state, int index)
+            throws IOException, InterruptedException {
+        long start = (long) index * state.segmentSize;
+        long end = Math.min(state.size, start + state.segmentSize) - 1;
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).header(HEADER_RANGE, "bytes=" + start + "-" + end);
+        String validator = state.etag != null ? state.etag : state.lastModified;
+        if (validator != null) request.header(HEADER_IF_RANGE, validator);
+
+        HttpResponse<InputStream> response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream in = response.body()) {
+            if (response.statusCode() == 200) {
+                throw new ResourceChangedException("Resource changed on server (If-Range failed), restart the download");
+            }
+            if (response.statusCode() != 206) throw new IOException("Range request returned " + response.statusCode());
+            String contentRange = response.headers().firstValue(HEADER_CONTENT_RANGE).orElse("");
+            if (!contentRange.equals("bytes " + start + "-" + end + "/" + state.size)) {
+                throw new IOException("Unexpected Content-Range: " + contentRange);
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer bb = ByteBuffer.wrap(buffer);
+            long expected = end - start + 1;
+            long written = 0;
+            int n;
+            while (written < expected && (n = in.read(buffer, 0, (int) Math.min(buffer.length, expected - written))) != -1) {
+                bb.clear().limit(n);
+                while (bb.hasRemaining()) {
+                    written += channel.write(bb, start + written);
+                }
+            }
+            if (written != expected) {
+                throw new IOException("Segment " + index + " truncated: " + written + "/" + expected + " bytes");
+            }
+        }
+        channel.force(false);
+        state.markDone(index);
+    }
+
+    /**
+     * 从 Repr-Digest（RFC 9530）或 Digest（RFC 3230）头中读取 sha-256。
+     */
+    private static String serverSha256(HttpResponse<?> response) {
+        for (String header : new String[]{HEADER_REPR_DIGEST, HEADER_DIGEST}) {
+            for (String value : response.headers().allValues(header)) {
+                for (String item : value.split(",")) {
+                    String v = item.trim();
+                    int eq = v.indexOf('=');
+                    if (eq > 0 && v.substring(0, eq).trim().equalsIgnoreCase("sha-256")) {
+                        String b64 = v.substring(eq + 1).trim();
+                        if (b64.startsWith(":") && b64.endsWith(":") && b64.length() > 1) b64 = b64.substring(1, b64.length() - 1);
+                        try {
+                            return HexFormat.of().formatHex(Base64.getDecoder().decode(b64));
+                        } catch (IllegalArgumentException ignored) {
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String sha256(Path file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) md.update(buffer, 0, n);
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    private static Path sibling(Path target, String suffix) {
+        return target.resolveSibling(target.getFileName() + suffix);
+    }
+
+    /**
+     * 服务端文件已变化，继续重试没有意义
+     */
+    private static final class ResourceChangedException extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        ResourceChangedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 续传状态：服务端校验器与已完成区间位图，每完成一个区间原子重写一次
+     */
+    private static final class State {
+        private final Path file;
+        private final String url;
+        private final long size;
+        private final String etag;
+        private final String lastModified;
+        private final long segmentSize;
+        private final BitSet done;
+
+        State(Path file, String url, long size, String etag, String lastModified, long segmentSize, BitSet done) {
+            this.file = file;
+            this.url = url;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.segmentSize = segmentSize;
+            this.done = done;
+        }
+
+        static State load(Path file) {
+            if (!Files.exists(file)) return null;
+            Properties p = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                p.load(in);
+                return new State(file, p.getProperty(KEY_URL), Long.parseLong(p.getProperty(KEY_SIZE)),
+                        p.getProperty(KEY_ETAG), p.getProperty(KEY_LAST_MODIFIED), Long.parseLong(p.getProperty(KEY_SEGMENT_SIZE)),
+                        BitSet.valueOf(Base64.getDecoder().decode(p.getProperty(KEY_DONE, ""))));
+            } catch (Exception e) {
+                log.warn("Ignoring unreadable download state {}: {}", file, e.getMessage());
+                return null;
+            }
+        }
+
+        boolean matches(URI uri, long size, String etag, String lastModified) {
+            // 没有强校验器时无法确认服务端文件未变化，不续传
+            if (etag == null && lastModified == null) return false;
+            return uri.toString().equals(url) && size == this.size && segmentSize > 0
+                    && Objects.equals(etag, this.etag) && Objects.equals(lastModified, this.lastModified);
+        }
+
+        int segmentCount() {
+            return (int) ((size + segmentSize - 1) / segmentSize);
+        }
+
+        synchronized boolean isDone(int index) {
+            return done.get(index);
+        }
+
+        synchronized void markDone(int index) throws IOException {
+            done.set(index);
+            save();
+        }
+
+        synchronized void save() throws IOException {
+            Properties p = new Properties();
+            p.setProperty(KEY_URL, url);
+            p.setProperty(KEY_SIZE, String.valueOf(size));
+            if (etag != null) p.setProperty(KEY_ETAG, etag);
+            if (lastModified != null) p.setProperty(KEY_LAST_MODIFIED, lastModified);
+            p.setProperty(KEY_SEGMENT_SIZE, String.valueOf(segmentSize));
+            p.setProperty(KEY_DONE, Base64.getEncoder().encodeToString(done.toByteArray()));
+            Path tmp = sibling(file, ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                p.store(out, null);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    static void main(String[] args) throws Exception {
+        String url = null;
+        String output = null;
+        String sha256 = null;
+        int streams = DEFAULT_STREAMS;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-n" -> streams = Integer.parseInt(args[++i]);
+                case "--sha256" -> sha256 = args[++i];
+                default -> {
+                    if (url == null) url = args[i];
+                    else output = args[i];
+                }
+            }
+        }
+        if (url == null) {
+            log.info("Usage: ParallelDownloadClient <url> [output] [-n streams] [--sha256 hex]");
+            return;
+        }
+        URI uri = URI.create(url);
+        if (output == null) {
+            String path = uri.getPath();
+            output = URLDecoder.decode(path.substring(path.lastIndexOf('/') + 1), StandardCharsets.UTF_8);
+            if (output.isEmpty()) output = "download";
+        }
+        new ParallelDownloadClient(streams).download(uri, Paths.get(output).toAbsolutePath(), sha256);
+    }
+}
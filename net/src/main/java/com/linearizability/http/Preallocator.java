@@ -0,0 +1,113 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * 磁盘空间预分配
+ * <p>
+ * Linux 下通过 FFM 调用 fallocate(2) 为文件预留真实的磁盘块：大文件的块分配更连续，空间不足在写入前即可暴露。
+ * RandomAccessFile#setLength 只会生成稀疏文件，并不分配磁盘块，因此不能替代。
+ * 非 Linux 平台、原生调用不可用或文件系统不支持 fallocate 时直接跳过，不做 posix_fallocate 那样的写零模拟。
+ * <p>
+ * 获取 fallocate 需要调用受限方法 {@link Linker#downcallHandle}，须以 {@code --enable-native-access=ALL-UNNAMED}
+ * 启动（可执行 jar 可在清单中声明 {@code Enable-Native-Access: ALL-UNNAMED}）；未开启时不做查找，
+ * 避免 JVM 每次启动在标准错误输出受限方法警告，预分配随之关闭。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+final class Preallocator {
+
+    private static final int O_WRONLY = 1;
+    private static final int O_CREAT = 0100;
+    private static final int FILE_MODE = 0644;
+
+    private static final MethodHandle OPEN;
+    private static final MethodHandle FALLOCATE;
+    private static final MethodHandle CLOSE;
+    private static final Charset PATH_CHARSET;
+    private static final boolean NATIVE_ACCESS = Preallocator.class.getModule().isNativeAccessEnabled();
+
+    static {
+        MethodHandle open = null;
+        MethodHandle fallocate = null;
+        MethodHandle close = null;
+        if (NATIVE_ACCESS && System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("linux")) {
+            try {
+                Linker linker = Linker.nativeLinker();
+                SymbolLookup libc = linker.defaultLookup();
+                open = linker.downcallHandle(libc.find("open").orElseThrow(),
+                        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT),
+                        Linker.Option.firstVariadicArg(2));
+                fallocate = linker.downcallHandle(libc.find("fallocate").orElseThrow(),
+                        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG));
+                close = linker.downcallHandle(libc.find("close").orElseThrow(),
+                        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+            } catch (Throwable e) {
+                // 找不到符号或原生链接器不可用
+                log.debug("fallocate unavailable: {}", e.toString());
+                open = fallocate = close = null;
+            }
+        }
+        OPEN = open;
+        FALLOCATE = fallocate;
+        CLOSE = close;
+        Charset charset;
+        try {
+            charset = Charset.forName(System.getProperty("sun.jnu.encoding", "UTF-8"));
+        } catch (RuntimeException e) {
+            charset = Charset.defaultCharset();
+        }
+        PATH_CHARSET = charset;
+    }
+
+    private Preallocator() {
+    }
+
+    static boolean available() {
+        return FALLOCATE != null;
+    }
+
+    /**
+     * 是否以 --enable-native-access 启动；为 false 时 {@link #available()} 一定为 false。
+     */
+    static boolean nativeAccessEnabled() {
+        return NATIVE_ACCESS;
+    }
+
+    /**
+     * 创建（或打开）文件并为其预留 [0, length) 的磁盘块，文件长度随之变为 length；调用方写完后须按实际长度截断。
+     *
+     * @return 是否已预分配；不支持时返回 false，文件可能未被创建
+     */
+    static boolean preallocate(Path file, long length) {
+        if (FALLOCATE == null || length <= 0) return false;
+        byte[] name = file.toString().getBytes(PATH_CHARSET);
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment path = arena.allocate(name.length + 1L);
+            MemorySegment.copy(name, 0, path, ValueLayout.JAVA_BYTE, 0, name.length);
+            path.set(ValueLayout.JAVA_BYTE, name.length, (byte) 0);
+            int fd = (int) OPEN.invokeExact(path, O_WRONLY | O_CREAT, FILE_MODE);
+            if (fd < 0) return false;
+            try {
+                return (int) FALLOCATE.invokeExact(fd, 0, 0L, length) == 0;
+            } finally {
+                int ignored = (int) CLOSE.invokeExact(fd);
+            }
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.linearizability.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * 上传进度事件总线
+ * <p>
+ * 每个上传 ID 对应一个 {@link Channel}，只保存最新一条进度（合并语义）：订阅者醒来时直接读取最新值，
+ * 中间的更新被丢弃，因此慢订阅者不会积压事件，也不会反压上传线程——发布只是一次短暂加锁的赋值与唤醒。
+ * <p>
+ * 通道总数有上限；已完成的通道保留一段时间供晚到的订阅者读取最终状态，长时间无更新的通道在创建新通道时清理。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+final class ProgressBus {
+
+    private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final long PUBLISH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // 上传线程的发布节流间隔
+    private static final long DONE_RETAIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    static final long IDLE_EXPIRE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * 进度快照
+     *
+     * @param seq   序号，每次发布递增
+     * @param file  当前文件名（尚未开始时为 null）
+     * @param bytes 已接收的文件字节数
+     * @param total 请求总字节数，未知时为 -1
+     * @param done  上传是否已结束
+     * @param error 失败原因，成功或进行中为 null
+     */
+    record Progress(long seq, String file, long bytes, long total, boolean done, String error) {
+    }
+
+    private final int maxChannels;
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+
+    ProgressBus(int maxChannels) {
+        this.maxChannels = maxChannels;
+    }
+
+    /**
+     * 取得（必要时创建）上传 ID 对应的通道。
+     *
+     * @return 通道；ID 不合法或通道数已满时返回 null
+     */
+    Channel channel(String id) {
+        if (id == null || !ID_PATTERN.matcher(id).matches()) return null;
+        Channel channel = channels.get(id);
+        if (channel != null) return channel;
+        if (channels.size() >= maxChannels) {
+            sweep();
+            if (channels.size() >= maxChannels) return null;
+        }
+        return channels.computeIfAbsent(id, k -> new Channel());
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        channels.values().removeIf(c -> c.expired(now));
+    }
+
+    /**
+     * 单个上传的进度通道
+     */
+    static final class Channel {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private Progress latest = new Progress(0, null, 0, -1, false, null);
+        private volatile long touched = System.currentTimeMillis();
+        private long lastPublishNanos; // 仅由上传线程访问
+
+        /**
+         * 上传线程调用：按 {@link #PUBLISH_INTERVAL_NANOS} 节流后发布进度。
+         */
+        void update(String file, long bytes, long total) {
+            long now = System.nanoTime();
+            if (now - lastPublishNanos < PUBLISH_INTERVAL_NANOS) return;
+            lastPublishNanos = now;
+            publish(file, bytes, total, false, null);
+        }
+
+        /**
+         * 发布最终状态，file 为 null 时沿用上一次的文件名。
+         */
+        void complete(String file, long bytes, long total, String error) {
+            publish(file, bytes, total, true, error);
+        }
+
+        private void publish(String file, long bytes, long total, boolean done, String error) {
+            lock.lock();
+            try {
+                latest = new Progress(latest.seq() + 1, file != null ? file : latest.file(), bytes, total, done, error);
+                touched = System.currentTimeMillis();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 等待比 seenSeq 更新的进度。
+         *
+         * @return 最新进度；超时仍无更新时返回 null
+         */
+        Progress await(long seenSeq, long timeoutMillis) throws InterruptedException {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            lock.lock();
+            try {
+                while (latest.seq() <= seenSeq) {
+                    if (nanos <= 0) return null;
+                    nanos = changed.awaitNanos(nanos);
+                }
+                return latest;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long idleMillis() {
+            return System.currentTimeMillis() - touched;
+        }
+
+        private boolean expired(long now) {
+            Progress p;
+            lock.lock();
+            try {
+                p = latest;
+            } finally {
+                lock.unlock();
+            }
+            return now - touched > (p.done() ? DONE_RETAIN_MILLIS : IDLE_EXPIRE_MILLIS);
+        }
+    }
+}
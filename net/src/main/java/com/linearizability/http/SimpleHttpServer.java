@@ -28,7 +28,7 @@ public class SimpleHttpServer {
 
     static void main() throws Exception {
         // 创建 HTTP 服务器，监听 0.0.0.0:${PORT}
-        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        HttpServer server = NioHttpServer.createServer(new InetSocketAddress(PORT), 0);
 
         // 注册处理器（所有路径都交给同一个处理）
         server.createContext("/", new RequestHandler());
@@ -0,0 +1,373 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * 存储目录的内存索引
+ * <p>
+ * 记录存储目录下每个文件的名称、大小与修改时间，列表页与下载查找直接读索引而不再访问文件系统：
+ * - 后台线程通过 {@link WatchService} 接收创建/修改/删除事件，逐个文件增量更新；
+ * - 事件溢出（OVERFLOW）或到达定期全量扫描时间时重新扫描整个目录，作为兜底；
+ * - 服务自身写入文件后可调用 {@link #refresh(String)} 立即更新，不依赖事件到达的时机。
+ * <p>
+ * 分片布局（见 {@link StorageLayout}）下不监听事件：数万个分片目录逐个注册会耗尽 inotify 配额，
+ * 服务自身的写入通过 refresh 即时可见，外部直接放入分片目录的文件在下一次全量扫描时纳入。
+ * 按名称查找始终是一次哈希表查询，不随文件数增长。
+ * <p>
+ * 配置了 {@link MetadataJournal} 时，每次条目变化都追加到日志，启动时回放日志而不扫描目录；
+ * 停机期间在外部发生的变化由第一次定期全量扫描补上。条目同时缓存上传时计算的 SHA-256 与检测出的 Content-Type，
+ * 下载路径不再为这些信息访问文件系统。
+ * <p>
+ * 列表按名称倒序排列，排序结果缓存到下一次索引变化为止。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+class StorageIndex implements Closeable {
+
+    /**
+     * 索引条目
+     *
+     * @param name         文件名
+     * @param size         文件大小（字节）
+     * @param lastModified 修改时间（毫秒）
+     * @param digest       十六进制 SHA-256，未知时为 null
+     * @param contentType  Content-Type，尚未检测时为 null
+     */
+    record Entry(String name, long size, long lastModified, String digest, String contentType) {
+
+        /**
+         * 大小与修改时间都相同，视为同一份内容，附带的摘要与类型仍然有效。
+         */
+        boolean sameFile(Entry other) {
+            return size == other.size && lastModified == other.lastModified;
+        }
+
+        Entry withDigest(String digest) {
+            return new Entry(name, size, lastModified, digest, contentType);
+        }
+
+        Entry withContentType(String contentType) {
+            return new Entry(name, size, lastModified, digest, contentType);
+        }
+    }
+
+    /**
+     * 列表排序字段，相同值按名称排序
+     */
+    enum Order {
+        NAME(Comparator.comparing(Entry::name)),
+        SIZE(Comparator.comparingLong(Entry::size).thenComparing(Entry::name)),
+        MTIME(Comparator.comparingLong(Entry::lastModified).thenComparing(Entry::name));
+
+        private final Comparator<Entry> comparator;
+
+        Order(Comparator<Entry> comparator) {
+            this.comparator = comparator;
+        }
+    }
+
+    /**
+     * 某一版本索引按某字段升序排列后的列表
+     */
+    private record Snapshot(long version, List<Entry> entries) {
+    }
+
+    private final StorageLayout layout;
+    private final String hiddenName;
+    private final long rescanMillis;
+    private final MetadataJournal journal;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final WatchService watcher;
+    private WatchKey rootKey; // 存储目录的监听，分片布局下为 null；仅构造器与监听线程访问
+    private Object rootFileKey; // 注册监听时存储目录的文件标识（inode），用于发现目录被替换
+    private final Thread thread;
+    private final AtomicLong version = new AtomicLong(); // 每次索引变化递增
+    private final AtomicLong totalBytes = new AtomicLong(); // 随条目增删同步维护
+    private final Map<Order, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * @param layout       存储目录布局
+     * @param hiddenName   不纳入索引的内部目录名
+     * @param rescanMillis 全量扫描间隔
+     * @param journal      元数据日志，为 null 时每次启动全量扫描
+     */
+    StorageIndex(StorageLayout layout, String hiddenName, long rescanMillis, MetadataJournal journal) throws IOException {
+        this.layout = layout;
+        this.hiddenName = hiddenName;
+        this.rescanMillis = rescanMillis;
+        this.journal = journal;
+        this.watcher = layout.root().getFileSystem().newWatchService();
+        if (!layout.sharded()) register();
+        if (journal != null && journal.existed()) {
+            load(journal.takeLoaded());
+        } else {
+            if (journal != null) journal.takeLoaded();
+            rescan(); // 首次启用日志时由扫描结果写入初始记录
+        }
+        this.thread = Thread.ofPlatform().name("storage-index").daemon(true).unstarted(this::watchLoop);
+    }
+
+    /**
+     * 启动后台监听线程。
+     */
+    void start() {
+        thread.start();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * 全部文件的总字节数。
+     */
+    long totalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * 按名称倒序排列的全部条目（不可修改）。
+     */
+    List<Entry> list() {
+        return list(Order.NAME, true);
+    }
+
+    /**
+     * 按指定字段排列的全部条目（不可修改），每种排序的结果缓存到下一次索引变化为止。
+     */
+    List<Entry> list(Order order, boolean descending) {
+        long v = version.get();
+        Snapshot s = snapshots.get(order);
+        if (s == null || s.version() != v) {
+            // 先取版本号再复制：复制期间若有变化，版本号已前进，下次调用会重建
+            List<Entry> copy = new ArrayList<>(entries.values());
+            copy.sort(order.comparator);
+            s = new Snapshot(v, List.copyOf(copy));
+            snapshots.put(order, s);
+        }
+        return descending ? s.entries().reversed() : s.entries();
+    }
+
+    /**
+     * 查找文件条目。
+     *
+     * @return 条目，不存在时返回 null
+     */
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * 重新读取单个文件的属性并更新索引。
+     *
+     * @return 最新条目，文件不存在或不是普通文件时返回 null
+     */
+    Entry refresh(String name) {
+        return refresh(name, null);
+    }
+
+    /**
+     * 重新读取单个文件的属性并更新索引，同时记录刚写入内容的 SHA-256。
+     *
+     * @param digest 十六进制 SHA-256，为 null 时保留内容未变的条目上已有的摘要
+     * @return 最新条目，文件不存在或不是普通文件时返回 null
+     */
+    Entry refresh(String name, String digest) {
+        if (hiddenName.equals(name)) return null;
+        Entry fresh = stat(layout.resolve(name));
+        return update(name, cur -> {
+            if (fresh == null) return null;
+            if (cur == null || !cur.sameFile(fresh)) return digest == null ? fresh : fresh.withDigest(digest);
+            return digest == null || digest.equals(cur.digest()) ? cur : cur.withDigest(digest);
+        });
+    }
+
+    /**
+     * 为条目记录检测出的 Content-Type；条目已变化（文件被替换）时忽略。
+     */
+    void annotate(Entry entry, String contentType) {
+        update(entry.name(), cur -> cur != null && cur.sameFile(entry) && cur.contentType() == null ? cur.withContentType(contentType) : cur);
+    }
+
+    /**
+     * 全量扫描存储目录并逐个合并到索引。
+     * <p>
+     * 扫描期间并发的 {@link #refresh} 可能已写入更新的条目，因此不整体替换：已有条目的修改时间更新时保留已有条目，
+     * 扫描中未出现的名称重新确认文件已不存在后才移除。
+     */
+    void rescan() throws IOException {
+        Map<String, Entry> scanned = new HashMap<>();
+        layout.forEachFile(p -> {
+            String name = p.getFileName().toString();
+            if (hiddenName.equals(name)) return;
+            Entry entry = stat(p);
+            if (entry != null) scanned.put(name, entry);
+        });
+        for (Entry entry : scanned.values()) {
+            update(entry.name(), cur -> cur != null && (cur.lastModified() > entry.lastModified() || cur.sameFile(entry)) ? cur : entry);
+        }
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (scanned.containsKey(e.getKey()) || stat(layout.resolve(e.getKey())) != null) continue;
+            // 条件删除：确认期间被 refresh 更新过的条目保留
+            Entry seen = e.getValue();
+            update(e.getKey(), cur -> cur == seen ? null : cur);
+        }
+    }
+
+    private void load(Map<String, MetadataJournal.Record> records) {
+        for (MetadataJournal.Record r : records.values()) {
+            if (hiddenName.equals(r.name())) continue;
+            Entry entry = new Entry(r.name(), r.size(), r.lastModified(), r.digest(), r.contentType());
+            entries.put(entry.name(), entry);
+            adjustBytes(null, entry);
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * 原子地替换一个条目，有变化时在 compute 返回后追加日志（不在持有哈希桶锁时等待日志锁）；
+     * 只有出现、消失或大小/修改时间变化才使列表缓存失效。
+     */
+    private Entry update(String name, UnaryOperator<Entry> next) {
+        Entry[] previous = new Entry[1];
+        Entry entry = entries.compute(name, (k, cur) -> {
+            previous[0] = cur;
+            return next.apply(cur);
+        });
+        Entry old = previous[0];
+        if (!Objects.equals(old, entry)) journal(name);
+        if (old != entry && (old == null || entry == null || !old.sameFile(entry))) {
+            adjustBytes(old, entry);
+            version.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * 追加条目的当前状态（在日志锁内读取），并发修改同一名称时日志以最后一次修改为准。
+     */
+    private void journal(String name) {
+        if (journal == null) return;
+        try {
+            journal.write(name, () -> {
+                Entry entry = entries.get(name);
+                return entry == null ? null
+                        : new MetadataJournal.Record(name, entry.size(), entry.lastModified(), entry.digest(), entry.contentType());
+            });
+        } catch (IOException e) {
+            log.warn("Failed to append {} to the metadata journal: {}", name, e.toString());
+        }
+    }
+
+    private void adjustBytes(Entry old, Entry entry) {
+        totalBytes.addAndGet((entry == null ? 0 : entry.size()) - (old == null ? 0 : old.size()));
+    }
+
+    private Entry stat(Path p) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) return null;
+            return new Entry(p.getFileName().toString(), attrs.size(), attrs.lastModifiedTime().toMillis(), null, null);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("Failed to stat {}: {}", p, e.getMessage());
+            return null;
+        }
+    }
+
+    private void register() throws IOException {
+        rootFileKey = Files.readAttributes(layout.root(), BasicFileAttributes.class).fileKey();
+        rootKey = layout.root().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    /**
+     * 监听是否仍指向当前的存储目录。目录下仍有打开的文件时，删除目录不会立即使监听失效，需比较文件标识。
+     */
+    private boolean watchingRoot() {
+        if (!rootKey.isValid()) return false;
+        try {
+            return Objects.equals(Files.readAttributes(layout.root(), BasicFileAttributes.class).fileKey(), rootFileKey);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 处理监听事件并定期全量扫描。存储目录被删除或替换后监听失效，此时仅靠定期扫描维护索引，
+     * 每次扫描前检查并尝试重新注册监听。
+     */
+    private void watchLoop() {
+        long nextRescan = System.currentTimeMillis() + rescanMillis;
+        while (!closed) {
+            try {
+                WatchKey key = watcher.poll(Math.max(1, nextRescan - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                boolean overflow = false;
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            refresh(((Path) event.context()).getFileName().toString());
+                        }
+                    }
+                    if (!key.reset()) overflow = true; // 立即扫描一次，补上失效前后可能漏掉的变化
+                }
+                if (overflow || System.currentTimeMillis() >= nextRescan) {
+                    if (rootKey != null && !watchingRoot()) rewatch();
+                    nextRescan = System.currentTimeMillis() + rescanMillis; // 扫描失败也等到下个周期再试
+                    rescan();
+                }
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("Storage index update failed", e);
+            }
+        }
+    }
+
+    private void rewatch() {
+        rootKey.cancel();
+        try {
+            register();
+            log.warn("Storage directory watch was lost and has been re-registered: {}", layout.root());
+        } catch (IOException e) {
+            log.warn("Storage directory is not watchable, relying on periodic rescans: {}", e.toString());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watcher.close();
+    }
+}
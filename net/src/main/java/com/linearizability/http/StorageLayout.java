@@ -0,0 +1,224 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * 存储目录的文件布局
+ * <p>
+ * - {@link Kind#FLAT}：所有文件直接位于存储目录下（默认，与早期版本兼容）；
+ * - {@link Kind#SHARDED}：按文件名的 FNV-1a 哈希分到两级前缀目录，如 {@code a3/0f/report.pdf}，
+ *   65536 个叶子目录使每个目录的条目数保持在文件系统高效处理的范围内。
+ * <p>
+ * 文件名到路径的映射是确定的，按名称查找无需列目录；对外的 /files/{name} 地址与布局无关。
+ * 当前布局记录在元数据目录的 layout 文件中，与配置不一致时由 {@link #migrate} 逐个改名迁移，
+ * 中断后重新执行即可继续；也可以在服务停止时通过 {@link #main} 离线迁移。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+final class StorageLayout {
+
+    /**
+     * 布局类型
+     */
+    enum Kind {
+        FLAT, SHARDED;
+
+        static Kind of(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final String LAYOUT_FILE = "layout";
+    private static final String MIGRATING_DIR = "migrating"; // 迁移中转目录，文件先集中到这里再放到新位置，避免文件名与分片目录名冲突
+    private static final Pattern SHARD_NAME = Pattern.compile("[0-9a-f]{2}");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path root;
+    private final Path metaDir;
+    private final Kind kind;
+
+    /**
+     * @param root    存储目录
+     * @param metaDir 元数据目录（位于存储目录下，不参与布局）
+     * @param kind    布局类型
+     */
+    StorageLayout(Path root, Path metaDir, Kind kind) {
+        this.root = root;
+        this.metaDir = metaDir;
+        this.kind = kind;
+    }
+
+    Path root() {
+        return root;
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    boolean sharded() {
+        return kind == Kind.SHARDED;
+    }
+
+    /**
+     * 文件名对应的存储路径，不访问文件系统。
+     */
+    Path resolve(String name) {
+        return kind == Kind.SHARDED ? root.resolve(shard(name)).resolve(name) : root.resolve(name);
+    }
+
+    /**
+     * 文件名对应的存储路径，并确保所在的分片目录存在，用于写入前。
+     */
+    Path prepare(String name) throws IOException {
+        Path path = resolve(name);
+        if (kind == Kind.SHARDED) Files.createDirectories(path.getParent());
+        return path;
+    }
+
+    /**
+     * 分片前缀：名称 UTF-8 字节的 32 位 FNV-1a 哈希取低 16 位，分成两级两位十六进制目录名。
+     */
+    static String shard(String name) {
+        int h = 0x811c9dc5;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        return new String(new char[]{HEX[(h >>> 12) & 0xf], HEX[(h >>> 8) & 0xf], '/', HEX[(h >>> 4) & 0xf], HEX[h & 0xf]});
+    }
+
+    /**
+     * 遍历当前布局下文件位置上的全部条目（跳过元数据目录），不逐个读取属性，由调用方过滤非普通文件。
+     */
+    void forEachFile(Consumer<Path> action) throws IOException {
+        if (kind == Kind.FLAT) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(root)) {
+                for (Path p : ds) {
+                    if (!p.equals(metaDir)) action.accept(p);
+                }
+            }
+        } else {
+            forEachShardedFile(root, action);
+        }
+    }
+
+    private static void forEachShardedFile(Path root, Consumer<Path> action) throws IOException {
+        try (DirectoryStream<Path> level1 = Files.newDirectoryStream(root, StorageLayout::isShardDir)) {
+            for (Path d1 : level1) {
+                try (DirectoryStream<Path> level2 = Files.newDirectoryStream(d1, StorageLayout::isShardDir)) {
+                    for (Path d2 : level2) {
+                        try (DirectoryStream<Path> files = Files.newDirectoryStream(d2)) {
+                            for (Path p : files) action.accept(p);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isShardDir(Path p) {
+        return SHARD_NAME.matcher(p.getFileName().toString()).matches() && Files.isDirectory(p);
+    }
+
+    /**
+     * 将存储目录迁移到本布局：位置不符的文件先改名到中转目录，清理空的分片目录后再放到新位置。
+     * 只做同一文件系统内的改名，不复制数据；同名文件同时存在于两种位置时保留修改时间较新的一个。
+     *
+     * @return 移动的文件数；布局已一致时为 0
+     */
+    int migrate() throws IOException {
+        Path layoutFile = metaDir.resolve(LAYOUT_FILE);
+        Path migrating = metaDir.resolve(MIGRATING_DIR);
+        Kind recorded = Files.exists(layoutFile) ? Kind.of(Files.readString(layoutFile, StandardCharsets.US_ASCII)) : Kind.FLAT;
+        if (recorded == kind && !Files.isDirectory(migrating)) return 0;
+
+        log.info("Migrating storage layout from {} to {}: {}", recorded.name().toLowerCase(Locale.ROOT), kind.name().toLowerCase(Locale.ROOT), root);
+        Files.createDirectories(migrating);
+        IOException[] error = new IOException[1];
+        Consumer<Path> collect = p -> {
+            if (error[0] != null || p.equals(resolve(p.getFileName().toString())) || !Files.isRegularFile(p)) return;
+            try {
+                moveNewer(p, migrating.resolve(p.getFileName()));
+            } catch (IOException e) {
+                error[0] = e;
+            }
+        };
+        new StorageLayout(root, metaDir, Kind.FLAT).forEachFile(collect);
+        forEachShardedFile(root, collect);
+        if (error[0] != null) throw error[0];
+        if (kind == Kind.FLAT) deleteEmptyShardDirs();
+
+        int moved = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(migrating)) {
+            for (Path p : ds) {
+                moveNewer(p, prepare(p.getFileName().toString()));
+                if (++moved % 100_000 == 0) log.info("Migrated {} files", moved);
+            }
+        }
+        Files.delete(migrating);
+        Files.writeString(layoutFile, kind.name().toLowerCase(Locale.ROOT), StandardCharsets.US_ASCII);
+        log.info("Storage layout migration finished: {} files moved", moved);
+        return moved;
+    }
+
+    private static void moveNewer(Path source, Path target) throws IOException {
+        if (Files.exists(target)) {
+            log.warn("Storage layout migration - duplicate {}, keeping the newer copy", target.getFileName());
+            if (Files.getLastModifiedTime(source).compareTo(Files.getLastModifiedTime(target)) <= 0) {
+                Files.delete(source);
+                return;
+            }
+        }
+        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void deleteEmptyShardDirs() throws IOException {
+        try (DirectoryStream<Path> level1 = Files.newDirectoryStream(root, StorageLayout::isShardDir)) {
+            for (Path d1 : level1) {
+                try (DirectoryStream<Path> level2 = Files.newDirectoryStream(d1, StorageLayout::isShardDir)) {
+                    for (Path d2 : level2) deleteIfEmpty(d2);
+                }
+                deleteIfEmpty(d1);
+            }
+        }
+    }
+
+    private static void deleteIfEmpty(Path dir) throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            if (ds.iterator().hasNext()) return;
+        }
+        try {
+            Files.delete(dir);
+        } catch (NoSuchFileException ignored) {
+        }
+    }
+
+    /**
+     * 离线迁移工具：{@code java StorageLayout <存储目录> <flat|sharded>}，须在服务停止时执行。
+     */
+    static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            log.error("Usage: StorageLayout <storage-dir> <flat|sharded>");
+            System.exit(2);
+        }
+        Path root = Paths.get(args[0]).toAbsolutePath();
+        Path metaDir = root.resolve(FileTransferServer.META_DIR);
+        Files.createDirectories(metaDir);
+        new StorageLayout(root, metaDir, Kind.of(args[1])).migrate(); // 迁移结果由 migrate 记录日志
+    }
+}
@@ -0,0 +1,352 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 存储配额与淘汰
+ * <p>
+ * - 配额：已用空间（{@link StorageIndex#totalBytes()}）加上进行中上传的预留不超过上限，上传开始时按 Content-Length 预留，
+ *   放不下时请求后台淘汰并短暂等待，仍放不下则立即拒绝，而不是写到一半磁盘写满；
+ * - 淘汰：后台线程定期执行，超出配额时按最近访问时间（或修改时间）从旧到新删除，直到回落到低水位；
+ *   设置了 TTL 时同时删除超过 TTL 未访问（或未修改）的文件。淘汰从不在请求线程上执行；
+ * - 固定：被固定的文件不参与淘汰，固定列表保存在元数据目录中。
+ * <p>
+ * 访问时间只在进程内记录（下载时更新），重启后以修改时间为初值，避免每次下载写磁盘。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+final class StorageQuota implements Closeable {
+
+    /**
+     * 淘汰顺序
+     */
+    enum Order {
+        ACCESS, // 最近访问时间（LRU）
+        AGE; // 修改时间，即上传时间
+
+        static Order of(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final double LOW_WATERMARK = 0.9; // 超出配额时淘汰到上限的 90%，避免每次上传都触发淘汰
+    private static final String PINS_FILE = "pinned";
+
+    private final StorageLayout layout;
+    private final StorageIndex index;
+    private final ContentStore contentStore;
+    private final TransferMetrics metrics;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final Order order;
+    private final long sweepMillis;
+    private final long reserveWaitMillis;
+    private final Path pinsFile;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong demand = new AtomicLong(); // 等待淘汰腾出空间的预留字节数
+    private final ConcurrentHashMap<String, Long> lastAccess = new ConcurrentHashMap<>();
+    private final Set<String> pinned = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wakeup = lock.newCondition();
+    private final Condition swept = lock.newCondition();
+    private boolean sweepRequested = true; // 启动后先执行一轮
+    private long sweeps; // 已完成的淘汰轮数
+    private long lastSweepFreed;
+    private volatile long pinnedBytes; // 上一轮淘汰时固定文件的总大小，淘汰无法低于此值
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param layout            存储目录布局
+     * @param metaDir           元数据目录（保存固定列表）
+     * @param index             存储索引
+     * @param contentStore      去重存储，为 null 时直接删除文件
+     * @param metrics           淘汰与拒绝计数
+     * @param maxBytes          配额上限，0 表示不限
+     * @param ttlMillis         未访问（或未修改）超过此时长的文件被删除，0 表示不按时间淘汰
+     * @param order             淘汰顺序
+     * @param sweepMillis       后台淘汰间隔
+     * @param reserveWaitMillis 预留空间不足时等待后台淘汰的最长时间
+     */
+    StorageQuota(StorageLayout layout, Path metaDir, StorageIndex index, ContentStore contentStore, TransferMetrics metrics,
+                 long maxBytes, long ttlMillis, Order order, long sweepMillis, long reserveWaitMillis) throws IOException {
+        this.layout = layout;
+        this.index = index;
+        this.contentStore = contentStore;
+        this.metrics = metrics;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.order = order;
+        this.sweepMillis = sweepMillis;
+        this.reserveWaitMillis = reserveWaitMillis;
+        this.pinsFile = metaDir.resolve(PINS_FILE);
+        if (Files.exists(pinsFile)) {
+            for (String line : Files.readAllLines(pinsFile, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) pinned.add(URLDecoder.decode(line.trim(), StandardCharsets.UTF_8));
+            }
+        }
+        this.thread = Thread.ofPlatform().name("storage-quota").daemon(true).unstarted(this::sweepLoop);
+    }
+
+    /**
+     * 启动后台淘汰线程；未设置配额与 TTL 时不启动。
+     */
+    void start() {
+        if (enabled()) thread.start();
+    }
+
+    boolean enabled() {
+        return maxBytes > 0 || ttlMillis > 0;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    long reservedBytes() {
+        return reserved.get();
+    }
+
+    /**
+     * 预留空间，上传结束（无论成功与否）时须关闭返回的预留。
+     * 当前放不下时唤醒后台淘汰并等待其完成，最多等待 reserveWaitMillis；淘汰已无可删除的文件时立即返回。
+     *
+     * @param bytes 预期写入的字节数，未知（&lt;= 0）时不预留
+     * @return 预留；空间不足时返回 null
+     */
+    Reservation reserve(long bytes) {
+        if (maxBytes <= 0 || bytes <= 0) return new Reservation(0);
+        if (bytes > maxBytes) {
+            metrics.quotaRejections.increment();
+            return null;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reserveWaitMillis);
+        lock.lock();
+        try {
+            while (true) {
+                if (index.totalBytes() + reserved.get() + bytes <= maxBytes) {
+                    reserved.addAndGet(bytes);
+                    return new Reservation(bytes);
+                }
+                long nanos = deadline - System.nanoTime();
+                // 即使删光未固定的文件也放不下时直接拒绝，不为它淘汰任何文件
+                if (nanos <= 0 || pinnedBytes + reserved.get() + bytes > maxBytes) break;
+                long round = sweeps;
+                demand.addAndGet(bytes);
+                try {
+                    sweepRequested = true;
+                    wakeup.signal();
+                    while (sweeps == round && nanos > 0) nanos = swept.awaitNanos(nanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } finally {
+                    demand.addAndGet(-bytes);
+                }
+                if (sweeps != round && lastSweepFreed == 0 && index.totalBytes() + reserved.get() + bytes > maxBytes) break;
+            }
+        } finally {
+            lock.unlock();
+        }
+        metrics.quotaRejections.increment();
+        return null;
+    }
+
+    /**
+     * 记录一次访问（下载），用于按访问时间淘汰。
+     */
+    void touch(String name) {
+        if (enabled()) lastAccess.put(name, System.currentTimeMillis());
+    }
+
+    boolean isPinned(String name) {
+        return pinned.contains(name);
+    }
+
+    /**
+     * 固定列表（按名称排序）。
+     */
+    List<String> pinned() {
+        return new ArrayList<>(new TreeSet<>(pinned));
+    }
+
+    /**
+     * 固定或取消固定文件，立即保存。
+     *
+     * @return 状态是否发生变化
+     */
+    boolean setPinned(String name, boolean pin) throws IOException {
+        synchronized (pinned) {
+            boolean changed = pin ? pinned.add(name) : pinned.remove(name);
+            if (changed) savePins();
+            return changed;
+        }
+    }
+
+    private void savePins() throws IOException {
+        Path tmp = pinsFile.resolveSibling(PINS_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (String name : pinned) {
+                writer.write(URLEncoder.encode(name, StandardCharsets.UTF_8));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, pinsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void sweepLoop() {
+        while (!closed) {
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(sweepMillis);
+                while (!sweepRequested && nanos > 0 && !closed) nanos = wakeup.awaitNanos(nanos);
+                sweepRequested = false;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            long freed = 0;
+            try {
+                freed = sweep();
+            } catch (Exception e) {
+                log.warn("Storage eviction pass failed", e);
+            }
+            lock.lock();
+            try {
+                sweeps++;
+                lastSweepFreed = freed;
+                swept.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 一轮淘汰：先按 TTL 删除过期文件，仍超出配额时按淘汰顺序删除到低水位。
+     *
+     * @return 释放的字节数
+     */
+    private long sweep() {
+        long now = System.currentTimeMillis();
+        lastAccess.keySet().removeIf(name -> index.get(name) == null);
+        List<StorageIndex.Entry> candidates = new ArrayList<>();
+        long pinnedTotal = 0;
+        for (StorageIndex.Entry entry : index.list(StorageIndex.Order.NAME, false)) {
+            if (pinned.contains(entry.name())) pinnedTotal += entry.size();
+            else candidates.add(entry);
+        }
+        pinnedBytes = pinnedTotal;
+        candidates.sort(Comparator.comparingLong(this::timestamp));
+
+        long freed = 0;
+        int next = 0;
+        if (ttlMillis > 0) {
+            while (next < candidates.size() && now - timestamp(candidates.get(next)) > ttlMillis) {
+                freed += evict(candidates.get(next++), "expired");
+            }
+        }
+        // 等待中的预留即使删光候选文件也放不下时不计入，避免为注定被拒绝的上传清空存储
+        boolean withDemand = pinnedTotal + reserved.get() + demand.get() <= maxBytes;
+        if (maxBytes > 0 && usage(withDemand) > maxBytes) {
+            long target = (long) (maxBytes * LOW_WATERMARK);
+            while (next < candidates.size() && usage(withDemand) > target) {
+                freed += evict(candidates.get(next++), "over quota");
+            }
+            if (usage(false) > maxBytes) {
+                log.warn("Storage over quota after eviction: {} bytes used + {} reserved, quota {} (remaining files are pinned)",
+                        index.totalBytes(), reserved.get(), maxBytes);
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * 已用 + 已预留（+ 等待中的预留）。
+     */
+    private long usage(boolean withDemand) {
+        return index.totalBytes() + reserved.get() + (withDemand ? demand.get() : 0);
+    }
+
+    private long timestamp(StorageIndex.Entry entry) {
+        if (order == Order.AGE) return entry.lastModified();
+        Long accessed = lastAccess.get(entry.name());
+        return accessed != null ? Math.max(accessed, entry.lastModified()) : entry.lastModified();
+    }
+
+    /**
+     * 删除文件并更新索引；文件在决定淘汰后被改写（大小或修改时间变化）时跳过。
+     *
+     * @return 释放的字节数
+     */
+    private long evict(StorageIndex.Entry entry, String reason) {
+        String name = entry.name();
+        StorageIndex.Entry current = index.refresh(name);
+        if (!entry.equals(current) || pinned.contains(name)) return 0;
+        try {
+            boolean deleted = contentStore != null ? contentStore.remove(name) : Files.deleteIfExists(layout.resolve(name));
+            index.refresh(name);
+            lastAccess.remove(name);
+            if (!deleted) return 0;
+        } catch (IOException e) {
+            log.warn("Failed to evict {}: {}", name, e.getMessage());
+            return 0;
+        }
+        metrics.evictedFiles.increment();
+        metrics.evictedBytes.add(entry.size());
+        log.info("Evicted {} ({} bytes, {})", name, entry.size(), reason);
+        return entry.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        lock.lock();
+        try {
+            wakeup.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 一次上传的空间预留
+     */
+    final class Reservation implements Closeable {
+        private long bytes;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (bytes > 0) reserved.addAndGet(-bytes);
+            bytes = 0;
+        }
+    }
+}
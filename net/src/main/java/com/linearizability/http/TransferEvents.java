@@ -0,0 +1,156 @@
+package com.linearizability.http;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * JDK Flight Recorder 自定义事件
+ * <p>
+ * 上传、下载、multipart 解析与列表页各自产生一个事件，携带文件名、字节数、客户端 IP 与耗时。
+ * 未开启录制时 {@link Event#shouldCommit()} 直接返回 false，事件对象经逃逸分析消除，几乎没有开销；
+ * 分阶段计时（socket 读取、磁盘写入）只在事件启用时才包装流。线上可直接通过
+ * {@code jcmd <pid> JFR.start name=transfer settings=profile} 开启，无需重新部署。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+final class TransferEvents {
+
+    private static final String CATEGORY = "File Transfer";
+
+    private TransferEvents() {
+    }
+
+    @Name("com.linearizability.http.Upload")
+    @Label("Upload")
+    @Category(CATEGORY)
+    @Description("A multipart upload request")
+    @StackTrace(false)
+    static final class Upload extends Event {
+        @Label("Client IP")
+        String clientIp;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Content Length")
+        @DataAmount
+        long contentLength;
+    }
+
+    @Name("com.linearizability.http.UploadFile")
+    @Label("Upload File")
+    @Category(CATEGORY)
+    @Description("One file part of a multipart upload, from its headers to its closing boundary")
+    @StackTrace(false)
+    static final class UploadFile extends Event {
+        @Label("Client IP")
+        String clientIp;
+        @Label("File Name")
+        String fileName;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Complete")
+        boolean complete;
+        @Label("Disk Write Time")
+        @Timespan
+        long writeTime;
+    }
+
+    @Name("com.linearizability.http.MultipartParse")
+    @Label("Multipart Parse")
+    @Category(CATEGORY)
+    @Description("Parsing of a multipart request body; scan time = duration - socket read time - disk write time")
+    @StackTrace(false)
+    static final class MultipartParse extends Event {
+        @Label("Client IP")
+        String clientIp;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("File Parts")
+        int parts;
+        @Label("Socket Read Time")
+        @Timespan
+        long readTime;
+        @Label("Disk Write Time")
+        @Timespan
+        long writeTime;
+    }
+
+    @Name("com.linearizability.http.Download")
+    @Label("Download")
+    @Category(CATEGORY)
+    @Description("A download request under /files/")
+    @StackTrace(false)
+    static final class Download extends Event {
+        @Label("Client IP")
+        String clientIp;
+        @Label("File Name")
+        String fileName;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Status")
+        int status;
+        @Label("Content Encoding")
+        String encoding;
+    }
+
+    @Name("com.linearizability.http.Listing")
+    @Label("Listing")
+    @Category(CATEGORY)
+    @Description("Rendering of the file listing page")
+    @StackTrace(false)
+    static final class Listing extends Event {
+        @Label("Client IP")
+        String clientIp;
+        @Label("Total Files")
+        int total;
+        @Label("Page Size")
+        int pageSize;
+        @Label("Sort")
+        String sort;
+    }
+
+    /**
+     * 累计 read 阻塞时间的输入流，仅在事件启用时使用。
+     */
+    static final class TimedInputStream extends FilterInputStream {
+        long nanos;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.read();
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.read(b, off, len);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+    }
+}
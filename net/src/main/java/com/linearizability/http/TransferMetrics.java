@@ -0,0 +1,151 @@
+package com.linearizability.http;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 传输指标
+ * <p>
+ * 全部计数基于 {@link LongAdder}，热路径上只做无锁累加，不引入竞争；抓取时按 Prometheus 文本格式汇总输出。
+ * 延迟直方图采用固定桶，每个桶一个 LongAdder，输出时再累加为 Prometheus 要求的累计计数。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+final class TransferMetrics {
+
+    /**
+     * 延迟直方图的桶上界（秒）
+     */
+    private static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder activeTransfers = new LongAdder();
+    final LongAdder multipartBytes = new LongAdder();
+    final LongAdder multipartNanos = new LongAdder();
+    final LongAdder quotaRejections = new LongAdder();
+    final LongAdder evictedFiles = new LongAdder();
+    final LongAdder evictedBytes = new LongAdder();
+    final LongAdder bufferLeases = new LongAdder();
+    final LongAdder buffersLeased = new LongAdder();
+    final LongAdder bufferPoolExhausted = new LongAdder();
+    final LongAdder hotCacheHits = new LongAdder();
+    final LongAdder hotCacheMisses = new LongAdder();
+    final LongAdder hotCacheAdmissions = new LongAdder();
+    final LongAdder hotCacheEvictions = new LongAdder();
+    final LongAdder hotCacheBytes = new LongAdder();
+    private final ConcurrentHashMap<String, RequestStats> handlers = new ConcurrentHashMap<>();
+
+    /**
+     * 单个处理器的请求计数与延迟分布
+     */
+    static final class RequestStats {
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length + 1]; // 最后一个为 +Inf
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private final LongAdder clientErrors = new LongAdder();
+        private final LongAdder serverErrors = new LongAdder();
+
+        private RequestStats() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        /**
+         * 记录一次请求。
+         *
+         * @param nanos  耗时（纳秒）
+         * @param status 响应状态码，未发送响应或处理异常时传 -1（计为服务端错误）
+         */
+        void record(long nanos, int status) {
+            double seconds = nanos / NANOS_PER_SECOND;
+            int i = 0;
+            while (i < LATENCY_BUCKETS.length && seconds > LATENCY_BUCKETS[i]) i++;
+            buckets[i].increment();
+            count.increment();
+            sumNanos.add(nanos);
+            if (status < 0 || status >= 500) serverErrors.increment();
+            else if (status >= 400) clientErrors.increment();
+        }
+    }
+
+    /**
+     * 处理器的统计对象（首次使用时创建），调用方可缓存。
+     */
+    RequestStats handler(String name) {
+        return handlers.computeIfAbsent(name, n -> new RequestStats());
+    }
+
+    /**
+     * 以 Prometheus 文本格式（0.0.4）输出全部指标。
+     *
+     * @param storageFiles 存储目录文件数
+     * @param storageBytes 存储目录总字节数
+     */
+    String render(long storageFiles, long storageBytes) {
+        StringBuilder sb = new StringBuilder(4096);
+        counter(sb, "filetransfer_bytes_received_total", "File data bytes received by uploads", bytesReceived.sum());
+        counter(sb, "filetransfer_bytes_sent_total", "File data bytes sent by downloads", bytesSent.sum());
+        gauge(sb, "filetransfer_active_transfers", "Uploads and downloads in progress", activeTransfers.sum());
+        counter(sb, "filetransfer_multipart_parsed_bytes_total", "File bytes extracted by the multipart parser", multipartBytes.sum());
+        counter(sb, "filetransfer_multipart_parse_seconds_total", "Time spent in multipart parsing, including socket reads and disk writes",
+                multipartNanos.sum() / NANOS_PER_SECOND);
+        gauge(sb, "filetransfer_storage_files", "Files in the storage directory", storageFiles);
+        gauge(sb, "filetransfer_storage_bytes", "Total size of files in the storage directory", storageBytes);
+        counter(sb, "filetransfer_quota_rejections_total", "Uploads rejected because the storage quota could not fit them", quotaRejections.sum());
+        counter(sb, "filetransfer_evicted_files_total", "Files removed by quota or TTL eviction", evictedFiles.sum());
+        counter(sb, "filetransfer_evicted_bytes_total", "Bytes freed by quota or TTL eviction", evictedBytes.sum());
+        counter(sb, "filetransfer_buffer_leases_total", "Transfer buffers leased from the pool", bufferLeases.sum());
+        gauge(sb, "filetransfer_buffers_leased", "Transfer buffers currently leased", buffersLeased.sum());
+        counter(sb, "filetransfer_buffer_pool_exhausted_total", "Leases served by a temporary buffer because the pool was exhausted",
+                bufferPoolExhausted.sum());
+        counter(sb, "filetransfer_hot_cache_hits_total", "Downloads that found a current entry in the in-memory hot file cache", hotCacheHits.sum());
+        counter(sb, "filetransfer_hot_cache_misses_total", "Downloads of cacheable-size files not found in the hot file cache", hotCacheMisses.sum());
+        counter(sb, "filetransfer_hot_cache_admissions_total", "Files loaded into the hot file cache", hotCacheAdmissions.sum());
+        counter(sb, "filetransfer_hot_cache_evictions_total", "Files evicted from the hot file cache to admit more frequent ones", hotCacheEvictions.sum());
+        gauge(sb, "filetransfer_hot_cache_bytes", "Off-heap bytes held by the hot file cache", hotCacheBytes.sum());
+
+        Map<String, RequestStats> sorted = new TreeMap<>(handlers);
+        header(sb, "filetransfer_request_duration_seconds", "Request latency by handler", "histogram");
+        sorted.forEach((name, stats) -> {
+            long cumulative = 0;
+            for (int i = 0; i < stats.buckets.length; i++) {
+                cumulative += stats.buckets[i].sum();
+                String le = i < LATENCY_BUCKETS.length ? String.valueOf(LATENCY_BUCKETS[i]) : "+Inf";
+                sb.append("filetransfer_request_duration_seconds_bucket{handler=\"").append(name)
+                        .append("\",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append("filetransfer_request_duration_seconds_sum{handler=\"").append(name).append("\"} ")
+                    .append(stats.sumNanos.sum() / NANOS_PER_SECOND).append('\n');
+            sb.append("filetransfer_request_duration_seconds_count{handler=\"").append(name).append("\"} ")
+                    .append(stats.count.sum()).append('\n');
+        });
+        header(sb, "filetransfer_request_errors_total", "Requests answered with 4xx (client) or 5xx / failed (server)", "counter");
+        sorted.forEach((name, stats) -> {
+            sb.append("filetransfer_request_errors_total{handler=\"").append(name).append("\",class=\"client\"} ")
+                    .append(stats.clientErrors.sum()).append('\n');
+            sb.append("filetransfer_request_errors_total{handler=\"").append(name).append("\",class=\"server\"} ")
+                    .append(stats.serverErrors.sum()).append('\n');
+        });
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, Number value) {
+        header(sb, name, help, "counter");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, Number value) {
+        header(sb, name, help, "gauge");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
@@ -0,0 +1,273 @@
+package com.linearizability.http;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * 分块上传会话
+ * <p>
+ * 每个会话对应一个目录，包含：
+ * - data：按最终大小预分配的数据文件，各分块通过位置写入并发落盘；
+ * - bitmap：每个分块一位，记录已接收的分块，分块数据 force 后才置位，保证重启后可续传；
+ * - session.properties：文件名、总大小、分块大小等元信息。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@Slf4j
+class UploadSession {
+
+    private static final String DATA_FILE = "data";
+    private static final String BITMAP_FILE = "bitmap";
+    private static final String META_FILE = "session.properties";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_CHUNK_SIZE = "chunkSize";
+    private static final String KEY_CREATED = "created";
+
+    private final String id;
+    private final Path dir;
+    private final String name;
+    private final long size;
+    private final int chunkSize;
+    private final long created;
+    private final int chunkCount;
+    private final byte[] bitmap;
+    private int receivedChunks;
+    private FileChannel dataChannel;
+    private FileChannel bitmapChannel;
+    private boolean closed;
+
+    private UploadSession(String id, Path dir, String name, long size, int chunkSize, long created, byte[] bitmap) {
+        this.id = id;
+        this.dir = dir;
+        this.name = name;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.created = created;
+        this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        this.bitmap = bitmap;
+        for (int i = 0; i < chunkCount; i++) {
+            if (isReceived(i)) receivedChunks++;
+        }
+    }
+
+    /**
+     * 创建新会话并预分配数据文件。
+     */
+    static UploadSession create(Path sessionsDir, String id, String name, long size, int chunkSize) throws IOException {
+        Path dir = sessionsDir.resolve(id);
+        Files.createDirectories(dir);
+        try (RandomAccessFile raf = new RandomAccessFile(dir.resolve(DATA_FILE).toFile(), "rw")) {
+            raf.setLength(size);
+        }
+        int chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        byte[] bitmap = new byte[(chunkCount + 7) / 8];
+        Files.write(dir.resolve(BITMAP_FILE), bitmap);
+
+        long created = System.currentTimeMillis();
+        Properties meta = new Properties();
+        meta.setProperty(KEY_NAME, name);
+        meta.setProperty(KEY_SIZE, String.valueOf(size));
+        meta.setProperty(KEY_CHUNK_SIZE, String.valueOf(chunkSize));
+        meta.setProperty(KEY_CREATED, String.valueOf(created));
+        try (OutputStream out = Files.newOutputStream(dir.resolve(META_FILE))) {
+            meta.store(out, null);
+        }
+        return new UploadSession(id, dir, name, size, chunkSize, created, bitmap);
+    }
+
+    /**
+     * 从会话目录恢复会话（服务器重启后调用）。
+     */
+    static UploadSession load(Path dir) throws IOException {
+        Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(dir.resolve(META_FILE))) {
+            meta.load(in);
+        }
+        String name = meta.getProperty(KEY_NAME);
+        long size = Long.parseLong(meta.getProperty(KEY_SIZE));
+        int chunkSize = Integer.parseInt(meta.getProperty(KEY_CHUNK_SIZE));
+        long created = Long.parseLong(meta.getProperty(KEY_CREATED));
+        byte[] bitmap = Files.readAllBytes(dir.resolve(BITMAP_FILE));
+        if (name == null || bitmap.length != ((size + chunkSize - 1) / chunkSize + 7) / 8) {
+            throw new IOException("Corrupt upload session: " + dir);
+        }
+        return new UploadSession(dir.getFileName().toString(), dir, name, size, chunkSize, created, bitmap);
+    }
+
+    String id() {
+        return id;
+    }
+
+    String name() {
+        return name;
+    }
+
+    long size() {
+        return size;
+    }
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    long created() {
+        return created;
+    }
+
+    int chunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * 指定分块的期望长度（最后一块可能不足 chunkSize）
+     */
+    long chunkLength(int index) {
+        return Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+
+    synchronized int receivedChunks() {
+        return receivedChunks;
+    }
+
+    synchronized boolean isComplete() {
+        return receivedChunks == chunkCount;
+    }
+
+    /**
+     * 从请求体读取一个分块并写入数据文件的对应位置。
+     * 分块长度必须与期望长度一致，写入并 force 后才在位图中置位；
+     * 已接收的分块不会被重复写入（客户端重试时直接丢弃请求体），避免损坏已确认的数据。
+     *
+     * @param buffer 拷贝缓冲区（由调用方从池中借出）
+     * @return 写入的字节数
+     * @throws IllegalArgumentException 分块序号越界或分块长度不符时抛出（客户端错误）
+     * @throws IOException              IO 失败时抛出
+     */
+    long writeChunk(int index, InputStream in, byte[] buffer) throws IOException {
+        if (index < 0 || index >= chunkCount) {
+            throw new IllegalArgumentException("Chunk index " + index + " out of range, session has " + chunkCount + " chunks");
+        }
+        long position = (long) index * chunkSize;
+        long expected = chunkLength(index);
+        if (isChunkReceived(index)) {
+            in.transferTo(OutputStream.nullOutputStream());
+            return 0;
+        }
+        FileChannel channel = dataChannel();
+
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long written = 0;
+        int n;
+        while (written < expected && (n = in.read(buffer, 0, (int) Math.min(buffer.length, expected - written))) != -1) {
+            bb.clear().limit(n);
+            while (bb.hasRemaining()) {
+                written += channel.write(bb, position + written);
+            }
+        }
+        if (written != expected || in.read() != -1) {
+            throw new IllegalArgumentException("Chunk " + index + " length mismatch, expected " + expected + " bytes");
+        }
+        channel.force(false);
+        markReceived(index);
+        return written;
+    }
+
+    /**
+     * 已接收的字节区间（闭区间），由位图中连续置位的分块合并而来。
+     */
+    synchronized List<long[]> receivedRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < chunkCount) {
+            if (!isReceived(i)) {
+                i++;
+                continue;
+            }
+            int j = i;
+            while (j + 1 < chunkCount && isReceived(j + 1)) j++;
+            ranges.add(new long[]{(long) i * chunkSize, (long) j * chunkSize + chunkLength(j) - 1});
+            i = j + 1;
+        }
+        return ranges;
+    }
+
+    /**
+     * 提交会话：将数据文件原子移动到目标路径并删除会话目录。
+     */
+    synchronized void commit(Path target) throws IOException {
+        if (!isComplete()) throw new IllegalStateException("Upload session " + id + " is incomplete");
+        closeChannels();
+        Files.move(dir.resolve(DATA_FILE), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteDir();
+    }
+
+    /**
+     * 放弃会话并删除全部临时数据。
+     */
+    synchronized void abort() throws IOException {
+        closeChannels();
+        deleteDir();
+    }
+
+    private synchronized FileChannel dataChannel() throws IOException {
+        if (closed) throw new IOException("Upload session " + id + " is closed");
+        if (dataChannel == null) {
+            dataChannel = FileChannel.open(dir.resolve(DATA_FILE), StandardOpenOption.WRITE);
+        }
+        return dataChannel;
+    }
+
+    private synchronized void markReceived(int index) throws IOException {
+        if (closed) throw new IOException("Upload session " + id + " is closed");
+        if (isReceived(index)) return;
+        bitmap[index >>> 3] |= (byte) (1 << (index & 7));
+        receivedChunks++;
+        if (bitmapChannel == null) {
+            bitmapChannel = FileChannel.open(dir.resolve(BITMAP_FILE), StandardOpenOption.WRITE);
+        }
+        bitmapChannel.write(ByteBuffer.wrap(bitmap, index >>> 3, 1), index >>> 3);
+    }
+
+    private synchronized boolean isChunkReceived(int index) {
+        return isReceived(index);
+    }
+
+    private boolean isReceived(int index) {
+        return (bitmap[index >>> 3] & (1 << (index & 7))) != 0;
+    }
+
+    private void closeChannels() throws IOException {
+        closed = true;
+        if (dataChannel != null) {
+            dataChannel.force(true);
+            dataChannel.close();
+        }
+        if (bitmapChannel != null) bitmapChannel.close();
+    }
+
+    private void deleteDir() throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+        log.info("Upload session removed: {}", id);
+    }
+}
@@ -0,0 +1,61 @@
+package com.linearizability.http;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+/**
+ * 基于 Vector API 的字节模式查找
+ * <p>
+ * 采用首尾字节过滤：每次取一个向量宽度的位置，同时比较模式首字节与尾字节，
+ * 只有两者都命中的候选位置才逐字节校验中间部分。multipart 负载中边界首尾字节同时命中的概率很低，
+ * 绝大多数字节只经过两次向量比较。
+ * <p>
+ * 仅在运行时加载了 jdk.incubator.vector 模块时才会被调用（见 {@link MultipartScanner.BytePattern}），
+ * 否则此类不会被加载。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+final class VectorByteSearch {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    private VectorByteSearch() {
+    }
+
+    /**
+     * 在 buf[from, to) 中查找 pattern 第一次出现的位置。
+     *
+     * @return 匹配位置或 -1
+     */
+    static int indexOf(byte[] buf, int from, int to, byte[] pattern) {
+        int last = pattern.length - 1;
+        int lanes = SPECIES.length();
+        ByteVector firstByte = ByteVector.broadcast(SPECIES, pattern[0]);
+        ByteVector lastByte = ByteVector.broadcast(SPECIES, pattern[last]);
+
+        int i = from;
+        int bound = to - last - lanes; // 保证 i + last + lanes <= to
+        for (; i <= bound; i += lanes) {
+            long candidates = ByteVector.fromArray(SPECIES, buf, i).eq(firstByte)
+                    .and(ByteVector.fromArray(SPECIES, buf, i + last).eq(lastByte))
+                    .toLong();
+            while (candidates != 0) {
+                int k = i + Long.numberOfTrailingZeros(candidates);
+                if (last == 0 || Arrays.equals(buf, k + 1, k + last, pattern, 1, last)) return k;
+                candidates &= candidates - 1;
+            }
+        }
+
+        // 剩余不足一个向量宽度的部分逐字节处理
+        for (; i <= to - pattern.length; i++) {
+            if (buf[i] == pattern[0] && buf[i + last] == pattern[last]
+                    && (last == 0 || Arrays.equals(buf, i + 1, i + last, pattern, 1, last))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,251 @@
+package com.linearizability.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 流式 ZIP 写出器
+ * <p>
+ * 条目的本地文件头不含 CRC 与大小（通用标志位 3），数据写完后以数据描述符补齐，因此既不需要临时文件，
+ * 也不需要预先读取整个文件；中央目录在 {@link #finish()} 时统一写出。
+ * 条目大小、偏移量或条目数超出 ZIP 原格式上限时使用 ZIP64 扩展字段与 ZIP64 目录结束记录。
+ * <p>
+ * 文件名按 UTF-8 编码（通用标志位 11）；已压缩格式（见 {@link #shouldStore}）以 STORED 原样写入，其余使用 DEFLATE。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+final class ZipStreamWriter {
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int MADE_BY_UNIX = 3 << 8;
+    private static final int FLAGS = (1 << 3) | (1 << 11); // 数据描述符 + UTF-8 文件名
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int UNIX_FILE_MODE = 0100644 << 16;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    // 原始大小超过此值的条目预先按 ZIP64 写本地头：写出本地头时尚不知道压缩后大小，DEFLATE 可能略有膨胀
+    private static final long ZIP64_ENTRY_THRESHOLD = 0xFFFF0000L;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "lz4", "7z", "rar", "jar", "war", "apk", "docx", "xlsx", "pptx", "odt",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif", "mp3", "aac", "m4a", "ogg", "opus", "flac",
+            "mp4", "m4v", "mkv", "mov", "avi", "webm", "woff", "woff2", "pdf");
+
+    /**
+     * 已写出条目在中央目录中的记录
+     */
+    private record Entry(byte[] name, int method, int dosTime, long crc, long compressedSize, long size, long offset, boolean zip64) {
+    }
+
+    private final OutputStream out;
+    private final int level;
+    private final List<Entry> entries = new ArrayList<>();
+    private final byte[] inBuf = new byte[BUFFER_SIZE];
+    private final byte[] outBuf = new byte[BUFFER_SIZE];
+    private final ByteBuffer header = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+    private Deflater deflater;
+    private long offset;
+    private boolean finished;
+
+    /**
+     * @param out   目标输出流（不会被关闭）
+     * @param level DEFLATE 压缩级别
+     */
+    ZipStreamWriter(OutputStream out, int level) {
+        this.out = out;
+        this.level = level;
+    }
+
+    /**
+     * 按扩展名判断文件是否已是压缩格式，已压缩的内容再 DEFLATE 只消耗 CPU。
+     */
+    static boolean shouldStore(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * 写出一个条目，读取 in 直到结束。
+     *
+     * @param name         条目名
+     * @param in           条目内容
+     * @param sizeHint     预期大小，用于决定是否预先使用 ZIP64
+     * @param lastModified 修改时间（毫秒）
+     * @param store        true 时以 STORED 写入，否则 DEFLATE
+     * @return 条目原始字节数
+     * @throws IOException 读写失败，或未预留 ZIP64 的条目超过 4GB 时抛出
+     */
+    long addEntry(String name, InputStream in, long sizeHint, long lastModified, boolean store) throws IOException {
+        if (finished) throw new IllegalStateException("archive already finished");
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int method = store ? METHOD_STORED : METHOD_DEFLATED;
+        int dosTime = dosTime(lastModified);
+        boolean zip64 = sizeHint >= ZIP64_ENTRY_THRESHOLD;
+        long entryOffset = offset;
+
+        header.clear();
+        header.putInt(LOCAL_HEADER_SIG).putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT)).putShort((short) FLAGS)
+                .putShort((short) method).putInt(dosTime).putInt(0)
+                .putInt(zip64 ? (int) ZIP64_MAGIC : 0).putInt(zip64 ? (int) ZIP64_MAGIC : 0)
+                .putShort((short) nameBytes.length).putShort((short) (zip64 ? 20 : 0));
+        flushHeader();
+        write(nameBytes, 0, nameBytes.length);
+        if (zip64) {
+            header.clear();
+            header.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16).putLong(0).putLong(0);
+            flushHeader();
+        }
+
+        crc.reset();
+        long size = 0;
+        long dataStart = offset;
+        if (store) {
+            int n;
+            while ((n = in.read(inBuf)) > 0) {
+                crc.update(inBuf, 0, n);
+                write(inBuf, 0, n);
+                size += n;
+            }
+        } else {
+            if (deflater == null) deflater = new Deflater(level, true);
+            else deflater.reset();
+            int n;
+            while ((n = in.read(inBuf)) > 0) {
+                crc.update(inBuf, 0, n);
+                size += n;
+                deflater.setInput(inBuf, 0, n);
+                while (!deflater.needsInput()) drainDeflater();
+            }
+            deflater.finish();
+            while (!deflater.finished()) drainDeflater();
+        }
+        long compressedSize = offset - dataStart;
+        if (!zip64 && (size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC)) {
+            throw new IOException("Entry " + name + " grew past 4 GiB while being archived");
+        }
+
+        header.clear();
+        header.putInt(DATA_DESCRIPTOR_SIG).putInt((int) crc.getValue());
+        if (zip64) header.putLong(compressedSize).putLong(size);
+        else header.putInt((int) compressedSize).putInt((int) size);
+        flushHeader();
+
+        entries.add(new Entry(nameBytes, method, dosTime, crc.getValue(), compressedSize, size, entryOffset, zip64));
+        return size;
+    }
+
+    /**
+     * 写出中央目录与目录结束记录，之后不能再添加条目。
+     */
+    void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        if (deflater != null) deflater.end();
+        long cdStart = offset;
+        for (Entry e : entries) writeCentralHeader(e);
+        long cdSize = offset - cdStart;
+
+        int count = entries.size();
+        if (count >= ZIP64_MAGIC_COUNT || cdStart >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC) {
+            long zip64End = offset;
+            header.clear();
+            header.putInt(ZIP64_END_SIG).putLong(44).putShort((short) (MADE_BY_UNIX | VERSION_ZIP64)).putShort((short) VERSION_ZIP64)
+                    .putInt(0).putInt(0).putLong(count).putLong(count).putLong(cdSize).putLong(cdStart);
+            header.putInt(ZIP64_LOCATOR_SIG).putInt(0).putLong(zip64End).putInt(1);
+            flushHeader();
+        }
+        header.clear();
+        header.putInt(END_SIG).putShort((short) 0).putShort((short) 0)
+                .putShort((short) Math.min(count, ZIP64_MAGIC_COUNT)).putShort((short) Math.min(count, ZIP64_MAGIC_COUNT))
+                .putInt((int) Math.min(cdSize, ZIP64_MAGIC)).putInt((int) Math.min(cdStart, ZIP64_MAGIC)).putShort((short) 0);
+        flushHeader();
+        out.flush();
+    }
+
+    /**
+     * 已写出的字节数（含文件头与中央目录）。
+     */
+    long bytesWritten() {
+        return offset;
+    }
+
+    private void writeCentralHeader(Entry e) throws IOException {
+        boolean sizes64 = e.zip64() || e.size() >= ZIP64_MAGIC || e.compressedSize() >= ZIP64_MAGIC;
+        boolean offset64 = e.offset() >= ZIP64_MAGIC;
+        int extraData = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+        int extraLen = extraData > 0 ? 4 + extraData : 0;
+        int version = extraLen > 0 ? VERSION_ZIP64 : VERSION_DEFAULT;
+
+        header.clear();
+        header.putInt(CENTRAL_HEADER_SIG).putShort((short) (MADE_BY_UNIX | version)).putShort((short) version)
+                .putShort((short) FLAGS).putShort((short) e.method()).putInt(e.dosTime()).putInt((int) e.crc())
+                .putInt(sizes64 ? (int) ZIP64_MAGIC : (int) e.compressedSize())
+                .putInt(sizes64 ? (int) ZIP64_MAGIC : (int) e.size())
+                .putShort((short) e.name().length).putShort((short) extraLen).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(UNIX_FILE_MODE)
+                .putInt(offset64 ? (int) ZIP64_MAGIC : (int) e.offset());
+        flushHeader();
+        write(e.name(), 0, e.name().length);
+        if (extraLen > 0) {
+            // ZIP64 扩展字段只包含头中被置为 0xFFFFFFFF 的字段，顺序固定为：原始大小、压缩后大小、偏移量
+            header.clear();
+            header.putShort((short) ZIP64_EXTRA_ID).putShort((short) extraData);
+            if (sizes64) header.putLong(e.size()).putLong(e.compressedSize());
+            if (offset64) header.putLong(e.offset());
+            flushHeader();
+        }
+    }
+
+    private void drainDeflater() throws IOException {
+        int n = deflater.deflate(outBuf);
+        if (n > 0) write(outBuf, 0, n);
+    }
+
+    private void flushHeader() throws IOException {
+        write(header.array(), 0, header.position());
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        offset += len;
+    }
+
+    /**
+     * 毫秒时间戳转换为 MS-DOS 日期时间（本地时区，精度 2 秒，1980 年之前按 1980-01-01 记录）。
+     */
+    private static int dosTime(long millis) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (t.getYear() < 1980) return (1 << 21) | (1 << 16);
+        int year = Math.min(t.getYear(), 2107);
+        int date = ((year - 1980) << 9) | (t.getMonthValue() << 5) | t.getDayOfMonth();
+        int time = (t.getHour() << 11) | (t.getMinute() << 5) | (t.getSecond() >> 1);
+        return (date << 16) | time;
+    }
+}
@@ -0,0 +1,81 @@
+package com.linearizability.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * multipart 边界查找基准（JMH）：对比标量 Boyer-Moore-Horspool 与 Vector API 首尾字节过滤。
+ * <p>
+ * 负载为不含边界的随机字节，模拟大文件上传时对每个缓冲区的整块扫描；每次操作扫描 bufferSize 字节，
+ * 吞吐（ops/s）乘以 bufferSize 即为字节吞吐。fork 出的 JVM 带 --add-modules jdk.incubator.vector，
+ * 模块不可用时 vector 基准在 setup 阶段失败。
+ * <p>
+ * 运行：{@code mvn -pl net test-compile} 后以测试 classpath 执行本类的 main。
+ *
+ * @author ZhangBoyuan
+ * @since 2026-10-17
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class BoundarySearchBenchmark {
+
+    /**
+     * curl 风格的边界（24 个 '-' + 16 位十六进制），浏览器的 ----WebKitFormBoundary... 结构相同
+     */
+    private static final String BOUNDARY = "\r\n--------------------------" + "3f8a9c2d71b4e605";
+
+    @Param({"65536", "1048576"})
+    public int bufferSize;
+
+    private byte[] pattern;
+    private MultipartScanner.BytePattern bytePattern;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        pattern = BOUNDARY.getBytes(StandardCharsets.ISO_8859_1);
+        bytePattern = new MultipartScanner.BytePattern(pattern);
+        buffer = new byte[bufferSize];
+        new Random(42).nextBytes(buffer);
+        if (bytePattern.indexOfScalar(buffer, 0, buffer.length) >= 0) {
+            throw new IllegalStateException("Random payload unexpectedly contains the boundary");
+        }
+    }
+
+    @Benchmark
+    public int scalar() {
+        return bytePattern.indexOfScalar(buffer, 0, buffer.length);
+    }
+
+    @Benchmark
+    public int vector() {
+        if (!MultipartScanner.BytePattern.VECTOR_SEARCH) {
+            throw new IllegalStateException("Vector API unavailable, run with --add-modules jdk.incubator.vector");
+        }
+        return VectorByteSearch.indexOf(buffer, 0, buffer.length, pattern);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BoundarySearchBenchmark.class.getSimpleName()).build()).run();
+    }
+}